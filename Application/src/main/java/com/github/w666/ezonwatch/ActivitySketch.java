@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.LocalDate;
+
+/**
+ * Activity statistics of a run of days that can be merged with the statistics of the days
+ * right after it.
+ *
+ * Histograms add up, and goal streaks are merged through the runs touching either end, so
+ * the statistics of any number of days can be built from independently computed pieces.
+ * Immutable.
+ */
+public final class ActivitySketch {
+    public static final int HOURS = 24;
+    public static final int MINUTES_PER_HOUR = 60;
+    // Width of the buckets of the per-hour histograms, in steps.
+    public static final int HOUR_BUCKET = 100;
+    private static final int HOUR_BUCKETS = MINUTES_PER_HOUR * 255 / HOUR_BUCKET + 1;
+
+    private final long[] mMinuteHistogram;
+    private final int[][] mHourHistograms;
+    private final int mDays;
+    private final int mGoalDays;
+    private final int mLongestActiveRun;
+    // Epoch days of the first and last day, and the runs of goal days touching them.
+    private final long mFirstDay;
+    private final long mLastDay;
+    private final int mPrefixStreak;
+    private final int mSuffixStreak;
+    private final int mLongestStreak;
+
+    private ActivitySketch(long[] minuteHistogram, int[][] hourHistograms, int days, int goalDays,
+                           int longestActiveRun, long firstDay, long lastDay, int prefixStreak,
+                           int suffixStreak, int longestStreak) {
+        mMinuteHistogram = minuteHistogram;
+        mHourHistograms = hourHistograms;
+        mDays = days;
+        mGoalDays = goalDays;
+        mLongestActiveRun = longestActiveRun;
+        mFirstDay = firstDay;
+        mLastDay = lastDay;
+        mPrefixStreak = prefixStreak;
+        mSuffixStreak = suffixStreak;
+        mLongestStreak = longestStreak;
+    }
+
+    /**
+     * @param minutes Steps per minute of the day, unsigned.
+     * @param goal Daily steps target, 0 if none.
+     * @param activeThreshold Steps in a minute for it to count as active.
+     */
+    public static ActivitySketch ofDay(LocalDate date, byte[] minutes, int goal,
+                                       int activeThreshold) {
+        final long[] minuteHistogram = new long[256];
+        final int[][] hourHistograms = new int[HOURS][HOUR_BUCKETS];
+        int total = 0;
+        int run = 0;
+        int longestRun = 0;
+        for (int hour = 0; hour < HOURS; hour++) {
+            int hourTotal = 0;
+            final int end = Math.min(minutes.length, (hour + 1) * MINUTES_PER_HOUR);
+            for (int i = hour * MINUTES_PER_HOUR; i < end; i++) {
+                final int steps = minutes[i] & 0xff;
+                minuteHistogram[steps]++;
+                hourTotal += steps;
+                if (steps >= activeThreshold) {
+                    run++;
+                    longestRun = Math.max(longestRun, run);
+                } else {
+                    run = 0;
+                }
+            }
+            hourHistograms[hour][hourTotal / HOUR_BUCKET]++;
+            total += hourTotal;
+        }
+        final int hit = goal > 0 && total >= goal ? 1 : 0;
+        return new ActivitySketch(minuteHistogram, hourHistograms, 1, hit, longestRun,
+                date.toEpochDay(), date.toEpochDay(), hit, hit, hit);
+    }
+
+    /**
+     * Combines this sketch with one of later days.
+     */
+    public ActivitySketch merge(ActivitySketch later) {
+        if (later.mFirstDay <= mLastDay) {
+            throw new IllegalArgumentException("Sketches overlap or are out of order");
+        }
+        final long[] minuteHistogram = mMinuteHistogram.clone();
+        for (int i = 0; i < minuteHistogram.length; i++) {
+            minuteHistogram[i] += later.mMinuteHistogram[i];
+        }
+        final int[][] hourHistograms = new int[HOURS][];
+        for (int hour = 0; hour < HOURS; hour++) {
+            hourHistograms[hour] = mHourHistograms[hour].clone();
+            for (int i = 0; i < HOUR_BUCKETS; i++) {
+                hourHistograms[hour][i] += later.mHourHistograms[hour][i];
+            }
+        }
+        // A day without data breaks a streak.
+        final boolean adjacent = later.mFirstDay == mLastDay + 1;
+        final int bridge = adjacent ? mSuffixStreak + later.mPrefixStreak : 0;
+        final int prefix = adjacent && isAllGoalDays() ? mPrefixStreak + later.mPrefixStreak
+                : mPrefixStreak;
+        final int suffix = adjacent && later.isAllGoalDays() ? mSuffixStreak + later.mSuffixStreak
+                : later.mSuffixStreak;
+        return new ActivitySketch(minuteHistogram, hourHistograms, mDays + later.mDays,
+                mGoalDays + later.mGoalDays, Math.max(mLongestActiveRun, later.mLongestActiveRun),
+                mFirstDay, later.mLastDay, prefix, suffix,
+                Math.max(bridge, Math.max(mLongestStreak, later.mLongestStreak)));
+    }
+
+    private boolean isAllGoalDays() {
+        return mPrefixStreak == mLastDay - mFirstDay + 1;
+    }
+
+    public int getDays() {
+        return mDays;
+    }
+
+    public LocalDate getFirstDay() {
+        return LocalDate.ofEpochDay(mFirstDay);
+    }
+
+    public LocalDate getLastDay() {
+        return LocalDate.ofEpochDay(mLastDay);
+    }
+
+    /**
+     * @return How many minutes had {@code steps} steps.
+     */
+    public long getMinutes(int steps) {
+        return mMinuteHistogram[steps];
+    }
+
+    /**
+     * @return Minutes with at least {@code threshold} steps.
+     */
+    public long getActiveMinutes(int threshold) {
+        long active = 0;
+        for (int i = threshold; i < mMinuteHistogram.length; i++) {
+            active += mMinuteHistogram[i];
+        }
+        return active;
+    }
+
+    /**
+     * @return Steps in the given hour of the day that {@code fraction} of the days stayed at
+     * or below, to {@link #HOUR_BUCKET} steps.
+     */
+    public int getHourPercentile(int hour, double fraction) {
+        final int[] histogram = mHourHistograms[hour];
+        final double rank = fraction * mDays;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(i * HOUR_BUCKET + HOUR_BUCKET - 1, MINUTES_PER_HOUR * 255);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Longest run of active minutes within a day.
+     */
+    public int getLongestActiveRun() {
+        return mLongestActiveRun;
+    }
+
+    /**
+     * @return Longest run of consecutive days that reached the goal.
+     */
+    public int getLongestGoalStreak() {
+        return mLongestStreak;
+    }
+
+    /**
+     * @return Fraction of the days that reached the goal.
+     */
+    public double getGoalHitRate() {
+        return mDays == 0 ? 0 : (double) mGoalDays / mDays;
+    }
+}
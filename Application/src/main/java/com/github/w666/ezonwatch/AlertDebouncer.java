@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Thins out a burst of alerts without delaying the first one.
+ *
+ * An alert that follows a quiet period goes out right away. Alerts within {@link #WINDOW}
+ * of the last one sent are coalesced, the latest wins and goes out when the window ends.
+ * Repeats of the alert just sent, e.g. a ringing call notification being updated, are
+ * dropped for {@link #REPEAT_WINDOW}. Times are in milliseconds. Not thread-safe.
+ */
+public class AlertDebouncer {
+    public static final long WINDOW = 2000;
+    public static final long REPEAT_WINDOW = 30 * 1000;
+
+    private long mLastSent = Long.MIN_VALUE / 2;
+    private String mLastText;
+    private String mPending;
+
+    /**
+     * @return The text to send now, or null if it was dropped or is pending; see
+     *         {@link #getFlushTime()}.
+     */
+    public String offer(String text, long now) {
+        if (text.equals(mLastText) && now - mLastSent < REPEAT_WINDOW) {
+            if (mPending != null && !text.equals(mPending)) {
+                // The pending one was superseded by what is already on the watch.
+                mPending = null;
+            }
+            return null;
+        }
+        if (now - mLastSent >= WINDOW) {
+            mPending = null;
+            return sent(text, now);
+        }
+        mPending = text;
+        return null;
+    }
+
+    public boolean hasPending() {
+        return mPending != null;
+    }
+
+    /**
+     * @return When the pending alert is due.
+     */
+    public long getFlushTime() {
+        return mLastSent + WINDOW;
+    }
+
+    /**
+     * @return The pending alert if it is due, otherwise null.
+     */
+    public String flush(long now) {
+        if (mPending == null || now < getFlushTime()) {
+            return null;
+        }
+        final String text = mPending;
+        mPending = null;
+        return sent(text, now);
+    }
+
+    private String sent(String text, long now) {
+        mLastText = text;
+        mLastSent = now;
+        return text;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.app.Notification;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.service.notification.NotificationListenerService;
+import android.service.notification.StatusBarNotification;
+import android.util.Log;
+
+/**
+ * Forwards incoming calls, and notifications of the apps picked in
+ * {@link Preferences#FORWARD_APPS}, to the current watch as a call reminder showing the caller
+ * or the notification title. Needs notification access granted in the system settings.
+ */
+public class AlertListenerService extends NotificationListenerService {
+    private final static String TAG = AlertListenerService.class.getSimpleName();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AlertDebouncer mDebouncer = new AlertDebouncer();
+    private BluetoothLeService mBluetoothLeService;
+    // Post time of the newest alert offered to the debouncer, for the latency of coalesced ones.
+    private long mPostTime;
+    private boolean mBound;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                mBluetoothLeService = null;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            send(mDebouncer.flush(SystemClock.uptimeMillis()), mPostTime);
+        }
+    };
+
+    @Override
+    public void onListenerConnected() {
+        // Bound for as long as notifications come in, so an alert never waits for the service.
+        mBound = bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onListenerDisconnected() {
+        mHandler.removeCallbacks(mFlush);
+        if (mBound) {
+            unbindService(mServiceConnection);
+            mBound = false;
+        }
+        mBluetoothLeService = null;
+    }
+
+    @Override
+    public void onNotificationPosted(StatusBarNotification sbn) {
+        final Notification notification = sbn.getNotification();
+        final boolean call = Notification.CATEGORY_CALL.equals(notification.category);
+        if (!call && !Preferences.readForwardApps(this).contains(sbn.getPackageName())) {
+            return;
+        }
+        final CharSequence title = notification.extras.getCharSequence(Notification.EXTRA_TITLE);
+        final String text = title != null ? title.toString() : call ? "CALL" : sbn.getPackageName();
+        mPostTime = sbn.getPostTime();
+        final long now = SystemClock.uptimeMillis();
+        send(mDebouncer.offer(text, now), mPostTime);
+        if (mDebouncer.hasPending()) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postAtTime(mFlush, mDebouncer.getFlushTime());
+        }
+    }
+
+    private void send(String text, long postTime) {
+        if (text == null) {
+            return;
+        }
+        final String address = Preferences.readDeviceAddress(this);
+        if (mBluetoothLeService == null || address == null) {
+            Log.w(TAG, "No watch to forward to");
+            return;
+        }
+        mBluetoothLeService.sendAlert(address, WatchCommands.buildCallReminder(text), postTime);
+    }
+}
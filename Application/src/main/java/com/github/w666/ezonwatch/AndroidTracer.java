@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * {@link Tracer} backend writing to the system trace, shown by Perfetto and systrace.
+ *
+ * The public async section API arrived with Android 10, so async sections go through the
+ * hidden {@code Trace.asyncTraceBegin} and {@code asyncTraceEnd} of Android 9, the way the
+ * support library's TraceCompat does. If those cannot be found only the nested sections are
+ * recorded.
+ */
+public class AndroidTracer implements Tracer.Backend {
+    private final static String TAG = AndroidTracer.class.getSimpleName();
+
+    // Section names longer than this are rejected by Trace.
+    private static final int MAX_NAME = 127;
+
+    private static boolean sInstalled;
+
+    private long mTraceTag;
+    private Method mAsyncTraceBegin;
+    private Method mAsyncTraceEnd;
+
+    private AndroidTracer() {
+        try {
+            mTraceTag = Trace.class.getField("TRACE_TAG_APP").getLong(null);
+            mAsyncTraceBegin = Trace.class.getMethod(
+                    "asyncTraceBegin", long.class, String.class, int.class);
+            mAsyncTraceEnd = Trace.class.getMethod(
+                    "asyncTraceEnd", long.class, String.class, int.class);
+        } catch (ReflectiveOperationException e) {
+            Log.w(TAG, "No async trace sections on this device", e);
+            mAsyncTraceBegin = null;
+            mAsyncTraceEnd = null;
+        }
+    }
+
+    /**
+     * Installs the backend once per process.
+     */
+    public static synchronized void install() {
+        if (!sInstalled) {
+            Tracer.setBackend(new AndroidTracer());
+            sInstalled = true;
+        }
+    }
+
+    @Override
+    public void begin(String name) {
+        Trace.beginSection(trim(name));
+    }
+
+    @Override
+    public void end() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void beginAsync(String name, int cookie) {
+        invoke(mAsyncTraceBegin, name, cookie);
+    }
+
+    @Override
+    public void endAsync(String name, int cookie) {
+        invoke(mAsyncTraceEnd, name, cookie);
+    }
+
+    private void invoke(Method method, String name, int cookie) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, mTraceTag, trim(name), cookie);
+        } catch (ReflectiveOperationException e) {
+            Log.w(TAG, "Unable to trace " + name, e);
+        }
+    }
+
+    private static String trim(String name) {
+        return name.length() > MAX_NAME ? name.substring(0, MAX_NAME) : name;
+    }
+}
@@ -16,43 +16,49 @@
 
 package com.github.w666.ezonwatch;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several watches may be connected at the same time, each through its
+ * own {@link DeviceSession}.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    // Most controllers have between 4 and 7 LE connection slots, some of which may already be
+    // taken by other apps (headsets, wearables); stay on the safe side.
+    public static final int MAX_CONNECTIONS = 4;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private boolean isServicesDescovered = false;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private final Map<String, DeviceSession> mSessions = new HashMap<String, DeviceSession>();
+    private final ConnectionSlots mConnectionSlots = new ConnectionSlots(MAX_CONNECTIONS);
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -64,108 +70,326 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String ACTION_STEPS_PROGRESS =
+            "com.github.w666.ezonwatch.ACTION_STEPS_PROGRESS";
+    public final static String ACTION_STEPS_AVAILABLE =
+            "com.github.w666.ezonwatch.ACTION_STEPS_AVAILABLE";
+    public final static String EXTRA_ADDRESS =
+            "com.github.w666.ezonwatch.EXTRA_ADDRESS";
+    public final static String EXTRA_DATE =
+            "com.github.w666.ezonwatch.EXTRA_DATE";
+    // False if a sync found the day as it was stored, nothing needs to be reloaded.
+    public final static String EXTRA_CHANGED =
+            "com.github.w666.ezonwatch.EXTRA_CHANGED";
+    public final static String EXTRA_PROGRESS =
+            "com.github.w666.ezonwatch.EXTRA_PROGRESS";
+
+    private static final String SYNC_CHANNEL_ID = "sync";
+    private static final int SYNC_NOTIFICATION_ID = 1;
+
+    public final static UUID UUID_EZON_MAIN = SampleGattAttributes.EZON_CHARACTERISTIC;
 
-    public final static UUID UUID_EZON_MAIN =
-            UUID.fromString(SampleGattAttributes.EZON_CHARACTERISTIC);
-
-
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    protected final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                if (isServicesDescovered) {
-                    Log.i(TAG, "Services are already discovered");
-                }
-                else {
-                    isServicesDescovered = mBluetoothGatt.discoverServices();
-                    Log.i(TAG, "Attempting to start service discovery:" +
-                            isServicesDescovered);
-                }
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
-        }
+    /**
+     * Receives the outcome of {@link #startSync(String, SyncCallback)}.
+     */
+    public interface SyncCallback {
+        void onSyncFinished(boolean success, int newSteps, boolean timeSynced);
+    }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
-        }
+    // Ring to buzz; a connected watch answers a write within a few connection intervals.
+    private static final LatencyTracker sAlertLatency = new LatencyTracker("alert", 500);
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
-        }
+    private static final Map<String, StepsHistory> sStepsHistories =
+            new HashMap<String, StepsHistory>();
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-        }
-    };
+    private boolean mBound = false;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Serial executor owning the GATT state of all sessions.
+    private HandlerThread mGattThread;
+    private Handler mGattHandler;
+    // Sessions currently receiving a steps file; the service stays in the foreground meanwhile.
+    private final Set<DeviceSession> mTransferring = new HashSet<DeviceSession>();
 
-    private void broadcastUpdate(final String action) {
+    void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-        // For all other profiles, writes the data formatted in HEX.
-        final byte[] data = characteristic.getValue();
+    void broadcastData(final String address, final byte[] data) {
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_ADDRESS, address);
         if (data != null && data.length > 0) {
             intent.putExtra(EXTRA_DATA, data);
         }
         sendBroadcast(intent);
     }
 
+    void broadcastProgress(String address, LocalDate date, int minutesReceived) {
+        final Intent intent = new Intent(ACTION_STEPS_PROGRESS);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_DATE, date.toString());
+        intent.putExtra(EXTRA_PROGRESS, minutesReceived);
+        sendBroadcast(intent);
+    }
+
+    void broadcastStepsAvailable(String address, LocalDate date, boolean changed) {
+        final Intent intent = new Intent(ACTION_STEPS_AVAILABLE);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_DATE, date.toString());
+        intent.putExtra(EXTRA_CHANGED, changed);
+        sendBroadcast(intent);
+        if (!changed) {
+            return;
+        }
+        getContentResolver().notifyChange(StepsProvider.CONTENT_URI, null);
+        if (date.equals(LocalDate.now())) {
+            StepsWidgetProvider.updateAll(this);
+            StepsTileService.requestUpdate(this);
+        }
+    }
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AndroidTracer.install();
+        mGattThread = new HandlerThread("gatt");
+        mGattThread.start();
+        mGattHandler = new Handler(mGattThread.getLooper());
+        final NotificationChannel channel = new NotificationChannel(SYNC_CHANNEL_ID,
+                "Sync", NotificationManager.IMPORTANCE_LOW);
+        ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+                .createNotificationChannel(channel);
+    }
+
+    @Override
+    public void onDestroy() {
+        close();
+        mGattThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        mBound = true;
         return mBinder;
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+        super.onRebind(intent);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
+        mBound = false;
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+        // invoked when the UI is disconnected from the Service, except for sessions still
+        // receiving a steps file; those are closed once their transfer completes.
+        closeIdleSessions();
+        super.onUnbind(intent);
+        return true;
+    }
+
+    /**
+     * Returns the history partition of a watch. Each watch stores its days in its own
+     * directory, named after its address.
+     */
+    public static StepsHistory openStepsHistory(Context context, String address) {
+        // One instance per watch, so its day cache sees every commit.
+        synchronized (sStepsHistories) {
+            StepsHistory history = sStepsHistories.get(address);
+            if (history == null) {
+                history = new StepsHistory(historyDir(context, address));
+                sStepsHistories.put(address, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Like {@link #openStepsHistory(Context, String)}, for addresses from outside the app.
+     *
+     * @return null if the address is malformed or nothing was stored for that watch yet.
+     */
+    public static StepsHistory findStepsHistory(Context context, String address) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)
+                || !historyDir(context, address).isDirectory()) {
+            return null;
+        }
+        return openStepsHistory(context, address);
+    }
+
+    private static File historyDir(Context context, String address) {
+        return new File(new File(context.getFilesDir(), "history"), address.replace(":", ""));
+    }
+
+    private synchronized DeviceSession getSession(String address) {
+        DeviceSession session = mSessions.get(address);
+        if (session == null) {
+            session = new DeviceSession(this, mConnectionSlots, mGattHandler, mMainHandler,
+                    address, openStepsHistory(this, address));
+            mSessions.put(address, session);
+        }
+        return session;
+    }
+
+    private synchronized DeviceSession findSession(String address) {
+        return address == null ? null : mSessions.get(address);
+    }
+
+    private synchronized List<DeviceSession> getSessions() {
+        return new ArrayList<DeviceSession>(mSessions.values());
+    }
+
+    /**
+     * @return The steps history the service stores downloaded days of a watch in.
+     */
+    public StepsHistory getStepsHistory(String address) {
+        return getSession(address).getStepsHistory();
+    }
+
+    /**
+     * @return A consistent snapshot of the connection and transfer state of a watch. Lock-free,
+     *         may be called from any thread.
+     */
+    public SessionState getSessionState(String address) {
+        final DeviceSession session = findSession(address);
+        return session == null ? SessionState.disconnected(address) : session.getState();
+    }
+
+    /**
+     * Records all writes to and notifications from the main characteristic of a watch to
+     * {@code file}, see {@link SessionRecorder}.
+     */
+    public void startRecording(String address, File file) {
+        getSession(address).startRecording(file);
+    }
+
+    public void stopRecording(String address) {
+        final DeviceSession session = findSession(address);
+        if (session != null) {
+            session.stopRecording();
+        }
+    }
+
+    /**
+     * Requests the steps file of a given day. The service runs in the foreground until the file
+     * is received and stored, progress is broadcast with {@link #ACTION_STEPS_PROGRESS} and the
+     * stored day is announced with {@link #ACTION_STEPS_AVAILABLE}.
+     *
+     * @return Return true if the request was written.
+     */
+    public boolean requestSteps(String address, LocalDate date) {
+        final DeviceSession session = findSession(address);
+        return session != null && session.requestSteps(date);
+    }
+
+    /**
+     * Shows an alert on the watch ahead of anything else queued for it, connecting if needed.
+     *
+     * @param frame Frame built by {@link WatchCommands#buildCallReminder(String)}.
+     * @param posted Wall clock time the alert was raised.
+     */
+    public void sendAlert(String address, byte[] frame, long posted) {
+        if (mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return;
+        }
+        getSession(address).sendAlert(frame, posted);
+    }
+
+    void onAlertDelivered(String address, long latency) {
+        if (!sAlertLatency.add(latency)) {
+            Log.w(TAG, "Alert to " + address + " took " + latency + " ms");
+        }
+        Log.d(TAG, sAlertLatency.toString());
+    }
+
+    /**
+     * @return Time from an alert being raised to the watch acknowledging it.
+     */
+    public static LatencyTracker getAlertLatency() {
+        return sAlertLatency;
+    }
+
+    /**
+     * Sends the target and alarm of {@link Preferences#readWatchConfig(Context)} to the watch,
+     * skipping whatever it already acknowledged.
+     *
+     * @param syncTime Whether to set the watch clock as well.
+     * @return Return true if the changes were queued.
+     */
+    public boolean applyWatchConfig(String address, boolean syncTime) {
+        final DeviceSession session = findSession(address);
+        return session != null && session.applyConfig(Preferences.readWatchConfig(this), syncTime);
+    }
+
+    /**
+     * Runs one batched background sync: connects to {@code address} if needed, sends the target
+     * and alarm if the watch does not have them, sets the watch clock if its
+     * {@link ClockDriftModel} predicts it is off by too much, downloads today's steps file and
+     * disconnects again if the sync opened the connection. Syncs of different watches run
+     * concurrently, bounded by {@link #MAX_CONNECTIONS}. Must be called on the main thread; the
+     * callback is invoked there as well.
+     *
+     * @return False if the sync cannot be started; a sync of a watch that is already syncing
+     *         reports failure through the callback.
+     */
+    public boolean startSync(String address, SyncCallback callback) {
+        if (mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+        getSession(address).startSync(callback);
+        return true;
+    }
+
+    synchronized void onTransferStarted(DeviceSession session) {
+        if (mTransferring.isEmpty()) {
+            // Started as well as bound, so the service outlives the activity while it receives.
+            startService(new Intent(this, BluetoothLeService.class));
+        }
+        mTransferring.add(session);
+        final Notification notification = new Notification.Builder(this, SYNC_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle("Ezon Watch")
+                .setContentText(mTransferring.size() == 1 ? "Reading steps data ..."
+                        : "Reading steps data from " + mTransferring.size() + " watches ...")
+                .setOngoing(true)
+                .build();
+        startForeground(SYNC_NOTIFICATION_ID, notification);
+    }
+
+    synchronized void onTransferFinished(DeviceSession session) {
+        if (!mTransferring.remove(session) || !mTransferring.isEmpty()) {
+            return;
+        }
+        stopForeground(true);
+        stopSelf();
+        if (!mBound) {
+            closeIdleSessions();
+        }
+    }
+
+    private void closeIdleSessions() {
+        for (DeviceSession session : getSessions()) {
+            if (!session.getState().isTransferActive()) {
+                session.close();
+            }
+        }
+    }
+
+    BluetoothAdapter getBluetoothAdapter() {
+        return mBluetoothAdapter;
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -196,7 +420,9 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. If all
+     * {@link #MAX_CONNECTIONS} connections are in use, the connection is started as soon as
+     * one of them is released.
      *
      * @param address The device address of the destination device.
      *
@@ -210,30 +436,7 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        getSession(address).connect();
         return true;
     }
 
@@ -243,24 +446,23 @@ public class BluetoothLeService extends Service {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(String address) {
+        final DeviceSession session = findSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.disconnect();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        for (DeviceSession session : getSessions()) {
+            session.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -268,43 +470,58 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address The watch the characteristic belongs to.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        final DeviceSession session = findSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.readCharacteristic(characteristic);
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void writeCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        final DeviceSession session = findSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        session.writeCharacteristic(characteristic);
+    }
+
+    /**
+     * Queues a write of {@code value} to a characteristic of the watch, looked up by UUID in
+     * the registry built on service discovery.
+     *
+     * @return true if the write was queued.
+     */
+    public boolean write(String address, UUID uuid, byte[] value) {
+        final DeviceSession session = findSession(address);
+        if (mBluetoothAdapter == null || session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return session.write(uuid, value);
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      *
+     * @param address The watch the characteristic belongs to.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final DeviceSession session = findSession(address);
+        if (mBluetoothAdapter == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        if (characteristic.getUuid().equals(UUID_EZON_MAIN)){
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-            descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : new byte[]{0x00, 0x00});
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        session.setCharacteristicNotification(characteristic, enabled);
     }
 
     /**
@@ -313,9 +530,15 @@ public class BluetoothLeService extends Service {
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final GattCharacteristicRegistry characteristics = getCharacteristics(address);
+        return characteristics == null ? null : characteristics.getServices();
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * @return Characteristics of the watch by UUID, or null until service discovery completed.
+     */
+    public GattCharacteristicRegistry getCharacteristics(String address) {
+        return getSessionState(address).getCharacteristics();
     }
 }
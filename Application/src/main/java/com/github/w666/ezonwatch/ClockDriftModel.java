@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.ArrayDeque;
+
+/**
+ * Drift of one watch clock against the phone, fitted from observed offsets, to set the clock
+ * only when it is predicted to be off by more than a threshold.
+ *
+ * Each observation is kept as the time since the clock was last set and how far the clock
+ * moved away from where the set left it. The rate is the least squares slope of those through
+ * the origin, so observations from several set intervals all count. Times are wall clock
+ * milliseconds, offsets are watch minus phone. Not thread-safe.
+ */
+public class ClockDriftModel {
+    public static final long DEFAULT_THRESHOLD = 500;
+    // Until a rate is known, as often as the clock was set before there was a model.
+    public static final long DEFAULT_INTERVAL = SyncPolicy.TIME_SYNC_INTERVAL;
+    public static final long MIN_INTERVAL = SyncPolicy.HOUR;
+    public static final long MAX_INTERVAL = 30 * 24 * SyncPolicy.HOUR;
+    private static final int MAX_SAMPLES = 32;
+
+    private final long mThreshold;
+    // Pairs of elapsed time since the set and drift since the set, oldest first.
+    private final ArrayDeque<long[]> mSamples = new ArrayDeque<long[]>();
+    private long mSetTime;
+    private long mSetOffset;
+
+    public ClockDriftModel(long threshold) {
+        mThreshold = threshold;
+    }
+
+    /**
+     * Records that the clock was set.
+     *
+     * @param offset Offset estimated right after the set.
+     */
+    public void onClockSet(long time, long offset) {
+        mSetTime = time;
+        mSetOffset = offset;
+    }
+
+    /**
+     * Records an offset read from the watch. Ignored before the first set, since the drift
+     * is only known relative to one.
+     */
+    public void addObservation(long time, long offset) {
+        if (mSetTime == 0 || time <= mSetTime) {
+            return;
+        }
+        mSamples.addLast(new long[]{time - mSetTime, offset - mSetOffset});
+        if (mSamples.size() > MAX_SAMPLES) {
+            mSamples.removeFirst();
+        }
+    }
+
+    public int getSampleCount() {
+        return mSamples.size();
+    }
+
+    /**
+     * @return Milliseconds the watch gains per millisecond, NaN if there are no observations.
+     */
+    public double getDriftRate() {
+        double xy = 0;
+        double xx = 0;
+        for (long[] sample : mSamples) {
+            xy += (double) sample[0] * sample[1];
+            xx += (double) sample[0] * sample[0];
+        }
+        return xx == 0 ? Double.NaN : xy / xx;
+    }
+
+    /**
+     * @return Predicted offset at {@code time}, the offset of the last set if the rate is not
+     *         known.
+     */
+    public long predictOffset(long time) {
+        final double rate = getDriftRate();
+        if (Double.isNaN(rate)) {
+            return mSetOffset;
+        }
+        return mSetOffset + Math.round(rate * (time - mSetTime));
+    }
+
+    /**
+     * @return When the predicted offset reaches the threshold, 0 if the clock was never set.
+     */
+    public long getNextResync() {
+        if (mSetTime == 0) {
+            return 0;
+        }
+        final double rate = getDriftRate();
+        if (Double.isNaN(rate)) {
+            return mSetTime + DEFAULT_INTERVAL;
+        }
+        // Room left before the offset crosses the threshold in the direction it drifts.
+        final double room = rate >= 0 ? mThreshold - mSetOffset : mThreshold + mSetOffset;
+        final double interval = rate == 0 ? MAX_INTERVAL : Math.max(0, room) / Math.abs(rate);
+        return mSetTime + (long) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    public boolean isResyncDue(long time) {
+        return time >= getNextResync();
+    }
+
+    /**
+     * @return A model written by {@link #toString()}, an empty one if null or unreadable.
+     */
+    public static ClockDriftModel parse(String value, long threshold) {
+        final ClockDriftModel model = new ClockDriftModel(threshold);
+        if (value == null) {
+            return model;
+        }
+        final String[] fields = value.split(",");
+        if (fields.length < 2) {
+            return model;
+        }
+        try {
+            model.mSetTime = Long.parseLong(fields[0]);
+            model.mSetOffset = Long.parseLong(fields[1]);
+            for (int i = 2; i + 1 < fields.length; i += 2) {
+                model.mSamples.addLast(
+                        new long[]{Long.parseLong(fields[i]), Long.parseLong(fields[i + 1])});
+            }
+        } catch (NumberFormatException e) {
+            return new ClockDriftModel(threshold);
+        }
+        return model;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(mSetTime).append(',').append(mSetOffset);
+        for (long[] sample : mSamples) {
+            builder.append(',').append(sample[0]).append(',').append(sample[1]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Timing of one latency-compensated clock sync.
+ *
+ * The TIME frame carries whole seconds and the watch takes it as the start of that second
+ * when it arrives. So a few reads are sent first as probes, which take the same
+ * request-to-response round trip as a write without touching the clock; half of the fastest
+ * one is the one-way delay, the slower ones having waited in a queue somewhere. The real
+ * write then goes out that much before a second boundary and carries the second that starts
+ * at the boundary.
+ */
+public class ClockSync {
+    public static final int PROBES = 4;
+    private static final long SECOND = 1000;
+    // Room for the handler to wake up before the write has to go out.
+    private static final long MIN_LEAD = 20;
+
+    private long mMinRoundTrip = Long.MAX_VALUE;
+    private int mProbes;
+
+    /**
+     * Adds the round trip of a probe write, in milliseconds.
+     */
+    public void addProbe(long roundTrip) {
+        mMinRoundTrip = Math.min(mMinRoundTrip, roundTrip);
+        mProbes++;
+    }
+
+    public int getProbeCount() {
+        return mProbes;
+    }
+
+    /**
+     * @return Estimated time for a write to reach the watch, 0 without probes.
+     */
+    public long getOneWayDelay() {
+        return mProbes == 0 ? 0 : mMinRoundTrip / 2;
+    }
+
+    /**
+     * @return Wall clock time of the second boundary the write should arrive at: the first one
+     *         that can still be reached from {@code now}.
+     */
+    public long getTargetTime(long now) {
+        final long earliest = now + getOneWayDelay() + MIN_LEAD;
+        return (earliest + SECOND - 1) / SECOND * SECOND;
+    }
+
+    /**
+     * @return Wall clock time to send the write that should arrive at {@code target}.
+     */
+    public long getSendTime(long target) {
+        return target - getOneWayDelay();
+    }
+
+    /**
+     * @param target Time encoded in the write.
+     * @param sent Wall clock time the write went out.
+     * @param roundTrip Round trip of the write.
+     * @return Estimated watch clock minus phone clock right after the write, in milliseconds.
+     */
+    public static long getOffset(long target, long sent, long roundTrip) {
+        return target - (sent + roundTrip / 2);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounds the number of simultaneous GATT connections.
+ *
+ * The Bluetooth controller only has a handful of LE connection slots; asking for more makes
+ * connection attempts fail or time out. Requests beyond the limit wait here in FIFO order
+ * and are started as soon as a connection is released.
+ */
+public class ConnectionSlots {
+
+    private final int mLimit;
+    private final ArrayDeque<Runnable> mWaiting = new ArrayDeque<Runnable>();
+    private int mUsed;
+
+    public ConnectionSlots(int limit) {
+        mLimit = limit;
+    }
+
+    /**
+     * Runs {@code onGranted} once a slot is available, right away if one is free.
+     */
+    public void acquire(Runnable onGranted) {
+        synchronized (this) {
+            if (mUsed >= mLimit) {
+                mWaiting.add(onGranted);
+                return;
+            }
+            mUsed++;
+        }
+        onGranted.run();
+    }
+
+    /**
+     * Withdraws a request that has not been granted yet.
+     *
+     * @return False if it was not waiting, i.e. it already holds a slot.
+     */
+    public synchronized boolean cancel(Runnable onGranted) {
+        return mWaiting.remove(onGranted);
+    }
+
+    /**
+     * Returns a slot, handing it straight to the oldest waiting request.
+     */
+    public void release() {
+        final Runnable next;
+        synchronized (this) {
+            next = mWaiting.poll();
+            if (next == null) {
+                mUsed = Math.max(0, mUsed - 1);
+                return;
+            }
+        }
+        next.run();
+    }
+
+    public synchronized int getUsed() {
+        return mUsed;
+    }
+
+    public synchronized int getWaiting() {
+        return mWaiting.size();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * One month of {@link DayCodec} encoded days in a single file, so that a small day does not
+ * take a whole file system block.
+ *
+ * <pre>
+ * "EZM1" | 31 * (offset (int) | length (int) | modified (long)) | records
+ * </pre>
+ *
+ * A length of 0 marks a day that is not stored. {@code modified} is when the day was
+ * committed, it survives being moved into the archive.
+ */
+public final class DayArchive {
+    private static final byte[] MAGIC = {'E', 'Z', 'M', '1'};
+    public static final int DAYS = 31;
+    private static final int ENTRY_SIZE = 16;
+    private static final int HEADER_SIZE = MAGIC.length + DAYS * ENTRY_SIZE;
+
+    // Encoded record and commit time per day of month, index 0 is the 1st.
+    private final byte[][] mRecords = new byte[DAYS][];
+    private final long[] mModified = new long[DAYS];
+
+    /**
+     * Reads all records of an archive, an empty archive if the file does not exist.
+     */
+    public static DayArchive read(File file) throws IOException {
+        final DayArchive archive = new DayArchive();
+        final RandomAccessFile in;
+        try {
+            in = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            return archive;
+        }
+        try {
+            final byte[] header = readHeader(in);
+            for (int day = 0; day < DAYS; day++) {
+                final int length = intAt(header, day, 4);
+                if (length > 0) {
+                    archive.mRecords[day] = new byte[length];
+                    in.seek(intAt(header, day, 0));
+                    in.readFully(archive.mRecords[day]);
+                    archive.mModified[day] = longAt(header, day, 8);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return archive;
+    }
+
+    /**
+     * Reads one day without loading the rest of the month.
+     *
+     * @param dayOfMonth 1 to 31.
+     * @return The decoded minutes, or null if the day is not in the archive.
+     */
+    public static byte[] readDay(File file, int dayOfMonth) throws IOException {
+        final RandomAccessFile in;
+        try {
+            in = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            final byte[] header = readHeader(in);
+            final int length = intAt(header, dayOfMonth - 1, 4);
+            if (length == 0) {
+                return null;
+            }
+            final byte[] record = new byte[length];
+            in.seek(intAt(header, dayOfMonth - 1, 0));
+            in.readFully(record);
+            return DayCodec.decode(record);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads only the header of an archive.
+     *
+     * @return Commit time of each day of the month, 0 for days that are not stored.
+     */
+    public static long[] readModified(File file) throws IOException {
+        final long[] modified = new long[DAYS];
+        final RandomAccessFile in;
+        try {
+            in = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            return modified;
+        }
+        try {
+            final byte[] header = readHeader(in);
+            for (int day = 0; day < DAYS; day++) {
+                if (intAt(header, day, 4) > 0) {
+                    modified[day] = longAt(header, day, 8);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return modified;
+    }
+
+    public void put(int dayOfMonth, byte[] minutes, long modified) {
+        mRecords[dayOfMonth - 1] = DayCodec.encode(minutes);
+        // 0 means not stored in readModified().
+        mModified[dayOfMonth - 1] = Math.max(1, modified);
+    }
+
+    /**
+     * Writes the archive to a temporary file and swaps it in atomically.
+     */
+    public void write(File file) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        int offset = HEADER_SIZE;
+        for (int day = 0; day < DAYS; day++) {
+            final int length = mRecords[day] == null ? 0 : mRecords[day].length;
+            out.writeInt(length == 0 ? 0 : offset);
+            out.writeInt(length);
+            out.writeLong(mModified[day]);
+            offset += length;
+        }
+        for (byte[] record : mRecords) {
+            if (record != null) {
+                out.write(record);
+            }
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private static byte[] readHeader(RandomAccessFile in) throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("Not a day archive");
+        }
+        return header;
+    }
+
+    private static int intAt(byte[] header, int day, int field) {
+        final int i = MAGIC.length + day * ENTRY_SIZE + field;
+        return (header[i] & 0xff) << 24 | (header[i + 1] & 0xff) << 16
+                | (header[i + 2] & 0xff) << 8 | (header[i + 3] & 0xff);
+    }
+
+    private static long longAt(byte[] header, int day, int field) {
+        return (long) intAt(header, day, field) << 32 | (intAt(header, day, field + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used {@link StepsDay}s of one history. Thread-safe.
+ *
+ * Every commit of a day bumps its version. A reader takes the version before it reads the
+ * day from disk and may only cache what it read if no commit happened in between, so a slow
+ * read can never put an outdated day back into the cache.
+ */
+public class DayCache {
+    private final int mMaxDays;
+    private final LinkedHashMap<LocalDate, StepsDay> mDays;
+    private final Map<LocalDate, Long> mVersions = new HashMap<LocalDate, Long>();
+    private int mHits;
+    private int mMisses;
+
+    public DayCache(final int maxDays) {
+        mMaxDays = maxDays;
+        mDays = new LinkedHashMap<LocalDate, StepsDay>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LocalDate, StepsDay> eldest) {
+                return size() > mMaxDays;
+            }
+        };
+    }
+
+    /**
+     * @return The cached day, or null if it has to be read.
+     */
+    public synchronized StepsDay get(LocalDate date) {
+        final StepsDay day = mDays.get(date);
+        if (day == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return day;
+    }
+
+    /**
+     * @return Version to pass to {@link #put(StepsDay, long)} after reading the day.
+     */
+    public synchronized long getVersion(LocalDate date) {
+        final Long version = mVersions.get(date);
+        return version == null ? 0 : version;
+    }
+
+    /**
+     * Caches a day read at {@code version}, unless it was committed again since.
+     */
+    public synchronized void put(StepsDay day, long version) {
+        if (getVersion(day.getDate()) == version) {
+            mDays.put(day.getDate(), day);
+        }
+    }
+
+    /**
+     * Called when a new version of the day is committed.
+     *
+     * @param day The new version, or null to only drop the old one.
+     */
+    public synchronized void onCommit(LocalDate date, StepsDay day) {
+        mVersions.put(date, getVersion(date) + 1);
+        if (day == null) {
+            mDays.remove(date);
+        } else {
+            mDays.put(date, day);
+        }
+    }
+
+    public synchronized void clear() {
+        mDays.clear();
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+}
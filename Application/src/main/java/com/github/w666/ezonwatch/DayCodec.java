@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of a day's minutes.
+ *
+ * Most minutes of a day have no steps, so the minutes are stored as alternating runs:
+ *
+ * <pre>
+ * FORMAT_RUNS | minutes (varint) | (zeros (varint) | count (varint) | count values)*
+ * </pre>
+ *
+ * A day that would not get smaller is stored as {@code FORMAT_RAW | minutes}. Varints are
+ * unsigned LEB128.
+ */
+public final class DayCodec {
+    public static final int FORMAT_RAW = 0;
+    public static final int FORMAT_RUNS = 1;
+
+    private DayCodec() {
+    }
+
+    public static byte[] encode(byte[] minutes) {
+        final byte[] out = new byte[minutes.length + 16];
+        int pos = 0;
+        out[pos++] = FORMAT_RUNS;
+        pos = writeVarint(out, pos, minutes.length);
+        int i = 0;
+        while (i < minutes.length) {
+            final int zerosStart = i;
+            while (i < minutes.length && minutes[i] == 0) {
+                i++;
+            }
+            final int valuesStart = i;
+            while (i < minutes.length && minutes[i] != 0) {
+                i++;
+            }
+            if (pos + 10 + i - valuesStart > minutes.length) {
+                // Not worth it.
+                final byte[] raw = new byte[minutes.length + 1];
+                raw[0] = FORMAT_RAW;
+                System.arraycopy(minutes, 0, raw, 1, minutes.length);
+                return raw;
+            }
+            pos = writeVarint(out, pos, valuesStart - zerosStart);
+            pos = writeVarint(out, pos, i - valuesStart);
+            System.arraycopy(minutes, valuesStart, out, pos, i - valuesStart);
+            pos += i - valuesStart;
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    public static byte[] decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    public static byte[] decode(byte[] data, int offset, int length) throws IOException {
+        final int end = offset + length;
+        if (length < 1) {
+            throw new IOException("Empty day record");
+        }
+        if (data[offset] == FORMAT_RAW) {
+            return Arrays.copyOfRange(data, offset + 1, end);
+        }
+        if (data[offset] != FORMAT_RUNS) {
+            throw new IOException("Unknown day format " + data[offset]);
+        }
+        final int[] pos = {offset + 1};
+        final byte[] minutes = new byte[readVarint(data, pos, end)];
+        int i = 0;
+        while (pos[0] < end) {
+            i += readVarint(data, pos, end);
+            final int count = readVarint(data, pos, end);
+            if (i + count > minutes.length || pos[0] + count > end) {
+                throw new IOException("Corrupt day record");
+            }
+            System.arraycopy(data, pos[0], minutes, i, count);
+            pos[0] += count;
+            i += count;
+        }
+        return minutes;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int readVarint(byte[] data, int[] pos, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= end) {
+                throw new IOException("Truncated day record");
+            }
+            final int b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * Steps per minute of one day as bars, pinch to zoom from the whole day down to single
+ * minutes and drag to scroll.
+ *
+ * When the view is given a day, min, max and sum of buckets of 1, 2, 4, ... minutes are
+ * worked out once. A frame picks the level whose buckets are closest to a pixel column, so
+ * it draws at most one bar per column whatever the zoom, into two {@code Path}s that are
+ * reused between frames: the busiest minute of the column and the column's average.
+ */
+public class DayTimelineView extends View {
+    private static final int MINUTES = StepsTransfer.MINUTES_PER_DAY;
+    // Closest zoom, in minutes across the view.
+    private static final float MIN_SPAN = 15;
+
+    // mMax[level][bucket], buckets of 1 << level minutes.
+    private int[][] mMax;
+    private int[][] mMin;
+    private int[][] mSum;
+    private int mScaleMax = 1;
+
+    // Visible minutes.
+    private float mStart = 0;
+    private float mSpan = MINUTES;
+
+    private final Path mMaxPath = new Path();
+    private final Path mAveragePath = new Path();
+    private final Paint mMaxPaint = new Paint();
+    private final Paint mAveragePaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    public DayTimelineView(Context context) {
+        this(context, null);
+    }
+
+    public DayTimelineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mMaxPaint.setColor(Color.rgb(0x90, 0xca, 0xf9));
+        mAveragePaint.setColor(Color.rgb(0x19, 0x76, 0xd2));
+        mTextPaint.setColor(Color.DKGRAY);
+        mTextPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+        mScaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        final float focus = mStart + detector.getFocusX() / getWidth() * mSpan;
+                        final float span = clamp(mSpan / detector.getScaleFactor(), MIN_SPAN, MINUTES);
+                        setVisible(focus - (focus - mStart) * span / mSpan, span);
+                        return true;
+                    }
+                });
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                setVisible(mStart + distanceX / getWidth() * mSpan, mSpan);
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                setVisible(0, MINUTES);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Shows a day, or nothing if {@code day} is null.
+     */
+    public void setDay(StepsDay day) {
+        if (day == null) {
+            mMax = null;
+            invalidate();
+            return;
+        }
+        int levels = 1;
+        while ((1 << (levels - 1)) < MINUTES) {
+            levels++;
+        }
+        mMax = new int[levels][];
+        mMin = new int[levels][];
+        mSum = new int[levels][];
+        mMax[0] = new int[MINUTES];
+        mMin[0] = new int[MINUTES];
+        mSum[0] = new int[MINUTES];
+        for (int i = 0; i < MINUTES && i < day.getMinuteCount(); i++) {
+            mMax[0][i] = mMin[0][i] = mSum[0][i] = day.getMinute(i);
+        }
+        for (int level = 1; level < levels; level++) {
+            final int count = (mMax[level - 1].length + 1) / 2;
+            mMax[level] = new int[count];
+            mMin[level] = new int[count];
+            mSum[level] = new int[count];
+            for (int i = 0; i < count; i++) {
+                final int a = 2 * i;
+                final int b = Math.min(a + 1, mMax[level - 1].length - 1);
+                mMax[level][i] = Math.max(mMax[level - 1][a], mMax[level - 1][b]);
+                mMin[level][i] = Math.min(mMin[level - 1][a], mMin[level - 1][b]);
+                mSum[level][i] = mSum[level - 1][a] + (b != a ? mSum[level - 1][b] : 0);
+            }
+        }
+        mScaleMax = Math.max(1, mMax[levels - 1][0]);
+        invalidate();
+    }
+
+    /**
+     * @return Smallest and largest minute and total steps in {@code [from, to)}, from the
+     * precomputed buckets.
+     */
+    public int[] getRange(int from, int to) {
+        if (mMax == null || from >= to) {
+            return null;
+        }
+        final int[] range = {Integer.MAX_VALUE, 0, 0};
+        // Biggest aligned buckets that fit, like a segment tree walk.
+        while (from < to) {
+            int level = 0;
+            while (level + 1 < mMax.length && from % (1 << (level + 1)) == 0
+                    && from + (1 << (level + 1)) <= to) {
+                level++;
+            }
+            final int bucket = from >> level;
+            range[0] = Math.min(range[0], mMin[level][bucket]);
+            range[1] = Math.max(range[1], mMax[level][bucket]);
+            range[2] += mSum[level][bucket];
+            from += 1 << level;
+        }
+        return range;
+    }
+
+    private void setVisible(float start, float span) {
+        mSpan = span;
+        mStart = clamp(start, 0, MINUTES - span);
+        invalidate();
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mScaleDetector.onTouchEvent(event);
+        if (!mScaleDetector.isInProgress()) {
+            mGestureDetector.onTouchEvent(event);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        Tracer.begin("render timeline");
+        try {
+            drawTimeline(canvas);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    private void drawTimeline(Canvas canvas) {
+        final int width = getWidth();
+        final float bottom = getHeight() - mTextPaint.getTextSize() - 4;
+        drawLabels(canvas, width);
+        if (mMax == null || width == 0) {
+            return;
+        }
+        final float minutesPerColumn = mSpan / width;
+        int level = 0;
+        while (level + 1 < mMax.length && (1 << (level + 1)) <= minutesPerColumn) {
+            level++;
+        }
+        final int[] max = mMax[level];
+        final int[] sum = mSum[level];
+        final float size = 1 << level;
+        final float yScale = bottom / mScaleMax;
+
+        mMaxPath.reset();
+        mAveragePath.reset();
+        if (minutesPerColumn < 1) {
+            // Zoomed in past one minute per pixel: one bar per minute.
+            final int first = (int) mStart;
+            final int last = Math.min(MINUTES - 1, (int) (mStart + mSpan));
+            final float columnWidth = width / mSpan;
+            for (int minute = first; minute <= last; minute++) {
+                final float left = (minute - mStart) * columnWidth;
+                mMaxPath.addRect(left, bottom - max[minute] * yScale,
+                        left + Math.max(1, columnWidth - 1), bottom, Path.Direction.CW);
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                final int first = (int) ((mStart + x * minutesPerColumn) / size);
+                final int last = Math.min(max.length - 1,
+                        Math.max(first, (int) ((mStart + (x + 1) * minutesPerColumn) / size) - 1));
+                int columnMax = 0;
+                int columnSum = 0;
+                for (int bucket = first; bucket <= last; bucket++) {
+                    columnMax = Math.max(columnMax, max[bucket]);
+                    columnSum += sum[bucket];
+                }
+                if (columnMax == 0) {
+                    continue;
+                }
+                final float average = columnSum / ((last - first + 1) * size);
+                mMaxPath.addRect(x, bottom - columnMax * yScale, x + 1, bottom, Path.Direction.CW);
+                mAveragePath.addRect(x, bottom - average * yScale, x + 1, bottom, Path.Direction.CW);
+            }
+        }
+        canvas.drawPath(mMaxPath, mMaxPaint);
+        canvas.drawPath(mAveragePath, mAveragePaint);
+    }
+
+    private void drawLabels(Canvas canvas, int width) {
+        final float y = getHeight() - 2;
+        mTextPaint.setTextAlign(Paint.Align.LEFT);
+        canvas.drawText(formatMinute((int) mStart), 0, y, mTextPaint);
+        final int end = Math.min(MINUTES, (int) Math.ceil(mStart + mSpan));
+        mTextPaint.setTextAlign(Paint.Align.RIGHT);
+        canvas.drawText(formatMinute(end), width, y, mTextPaint);
+        final int[] range = getRange((int) mStart, end);
+        if (range != null) {
+            mTextPaint.setTextAlign(Paint.Align.CENTER);
+            canvas.drawText(range[2] + " steps", width / 2f, y, mTextPaint);
+        }
+    }
+
+    private static String formatMinute(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+}
@@ -23,7 +23,6 @@ import android.app.ProgressDialog;
 import android.app.TimePickerDialog;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -39,6 +38,7 @@ import android.graphics.Point;
 import android.graphics.RectF;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.provider.Settings;
 import android.util.Log;
 import android.view.Display;
 import android.view.Menu;
@@ -46,23 +46,18 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
-import android.widget.ExpandableListView;
 import android.widget.ImageView;
 import android.widget.NumberPicker;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.UUID;
 
 import static android.view.View.*;
 
@@ -83,21 +78,15 @@ DeviceControlActivity extends Activity {
     private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
-    private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-    private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
     private BluetoothGattCharacteristic ezonCharacteristic;
-    private BluetoothGattCharacteristic resetEzonCharacteristic;
 
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
-
-    private byte[] stepsArr = null;
+    private StepsDay mToday = null;
+    private DayTimelineView mTimeline;
 
     private ProgressDialog dialog = null;
+    private boolean mRecording = false;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -111,6 +100,8 @@ DeviceControlActivity extends Activity {
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            resolveCharacteristics();
+            observeStepsTransfer();
         }
 
         @Override
@@ -129,78 +120,103 @@ DeviceControlActivity extends Activity {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            // Other watches may be syncing through the same service.
+            if (mDeviceAddress == null
+                    || !mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                return;
+            }
 
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
+                StartupTrace.connected();
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                resolveCharacteristics();
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
                 final byte[] data = intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA);
+                if (data == null) {
+                    // Empty values are broadcast without data.
+                    return;
+                }
                 final StringBuilder stringBuilder = new StringBuilder(data.length);
                 for(byte byteChar : data)
                     stringBuilder.append(String.format("%02X ", byteChar));
                 displayData(new String(data) + "\n" + stringBuilder.toString());
-                if (data[0] == (byte) 0x50) {
-                    if (data[1] == (byte) 0x00) {
-                        stepsArr = null;
-                        dialog = new ProgressDialog(DeviceControlActivity.this);
-                        dialog.setMessage("Reading  steps data ... ");
-                        dialog.setIndeterminate(false);
-                        dialog.setMax(1440);
-                        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                        dialog.show();
-                    }
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    try {
-                        if (stepsArr != null) {
-                            outputStream.write(stepsArr);
-                        }
-                        outputStream.write( Arrays.copyOfRange(data, 2, 19));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    stepsArr = outputStream.toByteArray();
-                    dialog.setProgress(stepsArr.length);
-                    if (data[1] == (byte) 0x4f) {
-                        dialog.dismiss();
-                        showTodayStepsTarget();
+            } else if (BluetoothLeService.ACTION_STEPS_PROGRESS.equals(action)) {
+                // Data available also echoes our own writes, steps only come from the watch.
+                StartupTrace.firstData();
+                showStepsProgress(intent.getIntExtra(BluetoothLeService.EXTRA_PROGRESS, 0));
+            } else if (BluetoothLeService.ACTION_STEPS_AVAILABLE.equals(action)) {
+                StartupTrace.firstData();
+                if (dialog != null) {
+                    dialog.dismiss();
+                    dialog = null;
+                }
+                final LocalDate date = LocalDate.parse(intent.getStringExtra(BluetoothLeService.EXTRA_DATE));
+                final boolean changed =
+                        intent.getBooleanExtra(BluetoothLeService.EXTRA_CHANGED, true);
+                if (date.equals(LocalDate.now())) {
+                    if (changed) {
+                        loadTodaySteps();
                     }
+                    showTodayStepsTarget();
                 }
             }
 
         }
     };
 
-    private int getStepsCount () {
-        int stepsCount = 0;
-        if (stepsArr == null) {
-            return stepsCount;
+    // The widget and tile show progress toward the target, refresh them when it changes.
+    private final SettingsRepository.OnChangeListener mSettingsListener =
+            new SettingsRepository.OnChangeListener() {
+        @Override
+        public void onSettingsChanged(SettingsRepository settings, Set<String> keys) {
+            if (keys.contains(Preferences.EZON_STEPS_TARGET)) {
+                StepsWidgetProvider.updateAll(getApplicationContext());
+                StepsTileService.requestUpdate(getApplicationContext());
+            }
+        }
+    };
+
+    private void showStepsProgress (int minutesReceived) {
+        if (dialog == null) {
+            dialog = new ProgressDialog(DeviceControlActivity.this);
+            dialog.setMessage("Reading  steps data ... ");
+            dialog.setIndeterminate(false);
+            dialog.setMax(StepsTransfer.MINUTES_PER_DAY);
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.show();
+        }
+        dialog.setProgress(minutesReceived);
+    }
+
+    private void loadTodaySteps () {
+        if (mBluetoothLeService == null) {
+            return;
         }
-        for (int i = 0; i< stepsArr.length; i++) {
-            stepsCount += stepsArr[i];
+        try {
+            mToday = mBluetoothLeService.getStepsHistory(mDeviceAddress).getDay(LocalDate.now());
+            mTimeline.setDay(mToday);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return stepsCount;
+    }
+
+    private int getStepsCount () {
+        return mToday == null ? 0 : mToday.getTotal();
     }
 
     private int[] getStepsByHour () {
-        int[] stepsByHourArr = new int[24];
-        if (stepsArr == null) {
+        int[] stepsByHourArr = new int[StepsDay.HOURS];
+        if (mToday == null) {
             return null;
         }
-        for (int i = 0; i<24; i++) {
-            int count = 0;
-            for (int j=0; j<60; j++) {
-                count += stepsArr[j+i];
-            }
-            stepsByHourArr[i] = count;
+        for (int i = 0; i < StepsDay.HOURS; i++) {
+            stepsByHourArr[i] = mToday.getHour(i);
         }
         return stepsByHourArr;
     }
@@ -228,6 +244,7 @@ DeviceControlActivity extends Activity {
         else {
             scquareSide = (int) (size.x*0.8);
         }
+        Tracer.begin("render ring");
         Bitmap bitmap = Bitmap.createBitmap(scquareSide, scquareSide, Bitmap.Config.ARGB_8888);
         final float startAngle = 0f;
         int stepsCount = getStepsCount();
@@ -269,6 +286,7 @@ DeviceControlActivity extends Activity {
         paint.setTextAlign(Paint.Align.CENTER);
         canvas.drawText(stepsCount+" steps", scquareSide/2, scquareSide/2, paint);
         imageView.setImageBitmap(bitmap);
+        Tracer.end();
         d.show();
     }
 
@@ -279,6 +297,7 @@ DeviceControlActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidTracer.install();
         setContentView(R.layout.gatt_services_characteristics);
 
         final Intent intent = getIntent();
@@ -289,6 +308,7 @@ DeviceControlActivity extends Activity {
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mDataField = (TextView) findViewById(R.id.data_value);
+        mTimeline = (DayTimelineView) findViewById(R.id.day_timeline);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -313,36 +333,40 @@ DeviceControlActivity extends Activity {
         mSetTarget.setOnClickListener(btnListener);
         Button mDisableTarget = (Button)findViewById(R.id.disable_target);
         mDisableTarget.setOnClickListener(btnListener);
+
+        SyncJobService.schedule(getApplicationContext());
     }
 
     public void writeMain(byte[] data) {
-        ezonCharacteristic.setValue(data);
-        if (!mConnected) {
-            mBluetoothLeService.connect(mDeviceAddress);
-        }
-        writeCharacteristic(ezonCharacteristic);
+        write(SampleGattAttributes.EZON_CHARACTERISTIC, data);
     }
 
     public void writeMain (String strData) {
-        byte[] data = hexStringToByteArray(strData);
-        ezonCharacteristic.setValue(data);
-        if (!mConnected) {
-            mBluetoothLeService.connect(mDeviceAddress);
-        }
-        writeCharacteristic(ezonCharacteristic);
+        writeMain(hexStringToByteArray(strData));
     }
 
     public void writeReset (String strData) {
-        byte[] data = hexStringToByteArray(strData);
-        resetEzonCharacteristic.setValue(data);
-        if (!mConnected) {
-            mBluetoothLeService.connect(mDeviceAddress);
+        final GattCharacteristicRegistry characteristics =
+                mBluetoothLeService.getCharacteristics(mDeviceAddress);
+        if (characteristics == null || characteristics.getReset() == null) {
+            Log.w(TAG, "Reset characteristic not available on " + mDeviceAddress);
+            return;
         }
-        writeCharacteristic(resetEzonCharacteristic);
+        write(characteristics.getReset().getUuid(), hexStringToByteArray(strData));
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        mBluetoothLeService.writeCharacteristic(characteristic);
+    // Sends only the settings the watch does not have yet.
+    private void applyWatchConfig(boolean syncTime) {
+        if (!mBluetoothLeService.applyWatchConfig(mDeviceAddress, syncTime)) {
+            displayData("Not connected, the watch gets the settings on the next sync");
+        }
+    }
+
+    private void write(UUID uuid, byte[] data) {
+        if (!isConnected()) {
+            mBluetoothLeService.connect(mDeviceAddress);
+        }
+        mBluetoothLeService.write(mDeviceAddress, uuid, data);
     }
 
     private OnClickListener btnListener = new OnClickListener()
@@ -350,27 +374,17 @@ DeviceControlActivity extends Activity {
         @Override
         public void onClick(View v) {
             if (mBluetoothLeService != null && ezonCharacteristic != null) {
-                mBluetoothLeService.setCharacteristicNotification(ezonCharacteristic,true);
+                mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, ezonCharacteristic,true);
                 switch (v.getId()) {
                     case R.id.enable_alarm: {
                         TimePickerDialog mTimePicker;
                         mTimePicker = new TimePickerDialog(DeviceControlActivity.this, new TimePickerDialog.OnTimeSetListener() {
                             @Override
                             public void onTimeSet(TimePicker timePicker, int selectedHour, int selectedMinute) {
-                                byte[] time = {(byte) selectedHour, (byte) selectedMinute};
-                                //byte[] data = hexStringToByteArray("414301080045");
-                                byte[] prefix = hexStringToByteArray("414301");
-                                byte[] enable = {0x45};
-                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-                                try {
-                                    outputStream.write( prefix );
-                                    outputStream.write( time );
-                                    outputStream.write( enable );
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                byte data[] = outputStream.toByteArray( );
-                                writeMain(data);
+                                final WatchConfig config = Preferences.readWatchConfig(getApplicationContext());
+                                Preferences.writeWatchConfig(getApplicationContext(),
+                                        config.withAlarm(selectedHour * 60 + selectedMinute, true));
+                                applyWatchConfig(false);
                             }
                         }, 8, 0, true);//Yes 24 hour time
                         mTimePicker.setTitle("Select Time");
@@ -383,8 +397,10 @@ DeviceControlActivity extends Activity {
                                 .setCancelable(true)
                                 .setPositiveButton("OK", new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int id) {
-                                        byte[] data = hexStringToByteArray("414301000044");
-                                        writeMain(data);
+                                        final WatchConfig config = Preferences.readWatchConfig(getApplicationContext());
+                                        Preferences.writeWatchConfig(getApplicationContext(),
+                                                config.withAlarm(Math.max(0, config.getAlarmMinute()), false));
+                                        applyWatchConfig(false);
                                     }
                                 })
                                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -397,33 +413,12 @@ DeviceControlActivity extends Activity {
                         break;
                     }
                     case R.id.sync_time: {
-                        /*
-                        54 49 4d 45 | 07 e0 | 09  | 1d | 0f | 04 | 2b | 00     | d002 | 000000000000
-                        just text   | year  |month|day |hour|min |sec | 12/24H | EOM  | nothing, just zeros
-                         T  I  M  E | 2016  | 09  | 29 | 15 | 04 | 43 | 12H    |      |
-                        */
                         AlertDialog.Builder builder = new AlertDialog.Builder(DeviceControlActivity.this);
                         builder.setMessage("Sync time?")
                                 .setCancelable(true)
                                 .setPositiveButton("OK", new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int id) {
-                                        String timeStr = "TIME";
-                                        byte[] bytes = timeStr.getBytes(Charset.forName("US-ASCII"));
-                                        Date date = Calendar.getInstance().getTime();
-                                        Calendar cal = Calendar.getInstance();
-                                        cal.setTime(date);
-                                        byte[] datetime = {(byte) (cal.get(Calendar.YEAR) >> 8), (byte) cal.get(Calendar.YEAR), (byte) (cal.get(Calendar.MONTH)+1), (byte) cal.get(Calendar.DAY_OF_MONTH),
-                                                (byte) cal.get(Calendar.HOUR_OF_DAY), (byte) cal.get(Calendar.MINUTE), (byte) cal.get(Calendar.SECOND), (byte) 0x01, (byte) 0xd0, (byte) 0x02};
-                                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-                                        try {
-                                            outputStream.write( bytes );
-                                            outputStream.write( datetime );
-                                            //outputStream.write( hexStringToByteArray("000000000000") );
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
-                                        byte data[] = outputStream.toByteArray( );
-                                        writeMain(data);
+                                        applyWatchConfig(true);
                                     }
                                 })
                                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -501,12 +496,8 @@ DeviceControlActivity extends Activity {
                                 .setCancelable(true)
                                 .setPositiveButton("OK", new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int id) {
-                                        Date date = Calendar.getInstance().getTime();
-                                        Calendar cal = Calendar.getInstance();
-                                        cal.setTime(date);
                                         // Get stepsArr data for Today
-                                        byte[] data = {(byte) 0x43, (byte) 0x02, (byte) (cal.get(Calendar.YEAR)-2000), (byte) (cal.get(Calendar.MONTH)+1),(byte) cal.get(Calendar.DAY_OF_MONTH), (byte) 0xd0, (byte) 0x02};
-                                        writeMain(data);
+                                        mBluetoothLeService.requestSteps(mDeviceAddress, LocalDate.now());
                                     }
                                 })
                                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -536,20 +527,8 @@ DeviceControlActivity extends Activity {
                         {
                             @Override
                             public void onClick(View v) {
-                                String timeStr = "STARGETE";
-                                byte[] bytes = timeStr.getBytes(Charset.forName("US-ASCII"));
                                 Preferences.writeStepsTarget(getApplicationContext(),Integer.parseInt(targetValues[np.getValue()]));
-                                byte target  = (byte) (Integer.parseInt(targetValues[np.getValue()])/100);
-                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-                                try {
-                                    outputStream.write( bytes );
-                                    outputStream.write( target );
-                                    outputStream.write(hexStringToByteArray("0000000000000000000000"));
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                byte data[] = outputStream.toByteArray( );
-                                writeMain(data);
+                                applyWatchConfig(false);
                                 //byte[] data = hexStringToByteArray("4301000000000000000000000000000000000000");
                                 //writeMain(data);
                                 d.dismiss();
@@ -571,9 +550,9 @@ DeviceControlActivity extends Activity {
                                 .setCancelable(true)
                                 .setPositiveButton("OK", new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int id) {
-                                        String timeStr = "STARGETD";
-                                        byte[] data = timeStr.getBytes(Charset.forName("US-ASCII"));
-                                        writeMain(data);
+                                        Preferences.writeWatchConfig(getApplicationContext(),
+                                                Preferences.readWatchConfig(getApplicationContext()).withTarget(WatchConfig.TARGET_OFF));
+                                        applyWatchConfig(false);
                                     }
                                 })
                                 .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -608,16 +587,39 @@ DeviceControlActivity extends Activity {
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        SettingsRepository.get(this).addListener(mSettingsListener);
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            observeStepsTransfer();
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        // The service keeps receiving and storing steps while paused, only the view stops.
         unregisterReceiver(mGattUpdateReceiver);
+        SettingsRepository.get(this).removeListener(mSettingsListener);
+        if (dialog != null) {
+            dialog.dismiss();
+            dialog = null;
+        }
+    }
+
+    // Catches up with whatever the service did while the activity was not listening.
+    private void observeStepsTransfer() {
+        loadTodaySteps();
+        final SessionState state = mBluetoothLeService.getSessionState(mDeviceAddress);
+        if (state.isTransferActive()) {
+            showStepsProgress(state.getTransferProgress());
+        }
+    }
+
+    // Reads the state the service published last instead of tracking it from broadcasts.
+    private boolean isConnected() {
+        return mBluetoothLeService != null
+                && mBluetoothLeService.getSessionState(mDeviceAddress).isConnected();
     }
 
     @Override
@@ -630,13 +632,14 @@ DeviceControlActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
-        if (mConnected) {
+        if (isConnected()) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_record).setChecked(mRecording);
         return true;
     }
 
@@ -647,15 +650,96 @@ DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_record:
+                mRecording = !mRecording;
+                if (mRecording) {
+                    // Pull with adb and replay with SessionReplayer.
+                    File file = new File(getExternalFilesDir("recordings"),
+                            mDeviceAddress.replace(":", "") + "-" + System.currentTimeMillis() + ".ezr");
+                    mBluetoothLeService.startRecording(mDeviceAddress, file);
+                    Toast.makeText(this, "Recording to " + file, Toast.LENGTH_SHORT).show();
+                } else {
+                    mBluetoothLeService.stopRecording(mDeviceAddress);
+                }
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_export:
+                showExportDialog();
+                return true;
+            case R.id.menu_forward_alerts:
+                // Calls reach the watch once the app may read notifications.
+                startActivity(new Intent(Settings.ACTION_NOTIFICATION_LISTENER_SETTINGS));
                 return true;
             case android.R.id.home:
-                onBackPressed();
+                // The scan screen is skipped on launch for a known watch, open it explicitly.
+                final Intent intent = new Intent(this, DeviceScanActivity.class);
+                intent.putExtra(DeviceScanActivity.EXTRA_PICK_DEVICE, true);
+                intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+                startActivity(intent);
+                finish();
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void showExportDialog() {
+        final String[] choices = {"Minutes, CSV", "Hours, CSV", "Days, CSV", "Minutes, JSON lines"};
+        final StepsExporter.Format[] formats = {StepsExporter.Format.CSV, StepsExporter.Format.CSV,
+                StepsExporter.Format.CSV, StepsExporter.Format.JSON_LINES};
+        final StepsExporter.Resolution[] resolutions = {StepsExporter.Resolution.MINUTE,
+                StepsExporter.Resolution.HOUR, StepsExporter.Resolution.DAY,
+                StepsExporter.Resolution.MINUTE};
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_export)
+                .setItems(choices, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        exportHistory(formats[which], resolutions[which]);
+                    }
+                })
+                .show();
+    }
+
+    private void exportHistory(final StepsExporter.Format format,
+                               final StepsExporter.Resolution resolution) {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final StepsHistory history = mBluetoothLeService.getStepsHistory(mDeviceAddress);
+        final File file = new File(getExternalFilesDir("exports"),
+                mDeviceAddress.replace(":", "") + "-" + resolution.name().toLowerCase()
+                        + (format == StepsExporter.Format.CSV ? ".csv" : ".jsonl"));
+        // Years of minutes take a few seconds, keep it off the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    final FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        final long rows = new StepsExporter(history).export(LocalDate.MIN,
+                                LocalDate.MAX, format, resolution, out.getChannel());
+                        message = "Exported " + rows + " rows to " + file;
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Export failed", e);
+                    message = "Export failed: " + e.getMessage();
+                }
+                final String text = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this, text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "export").start();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -671,46 +755,14 @@ DeviceControlActivity extends Activity {
         }
     }
 
-    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-                if (gattCharacteristic.getUuid().equals(mBluetoothLeService.UUID_EZON_MAIN)) {
-                    ezonCharacteristic = gattCharacteristic;
-                    displayData("EZON Characteristic found " + gattCharacteristic.getUuid().toString());
-                }
-            }
-            mGattCharacteristics.add(charas);
+    // Picks up the characteristics the buttons write to, once the service discovered them.
+    private void resolveCharacteristics() {
+        final GattCharacteristicRegistry characteristics =
+                mBluetoothLeService.getCharacteristics(mDeviceAddress);
+        if (characteristics == null) return;
+        ezonCharacteristic = characteristics.getMain();
+        if (ezonCharacteristic != null) {
+            displayData("EZON Characteristic found " + ezonCharacteristic.getUuid().toString());
         }
     }
 
@@ -720,6 +772,8 @@ DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_STEPS_PROGRESS);
+        intentFilter.addAction(BluetoothLeService.ACTION_STEPS_AVAILABLE);
         return intentFilter;
     }
 }
@@ -27,6 +27,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -37,7 +38,6 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -45,10 +45,16 @@ import java.util.Arrays;
  */
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private SeenDevices mSeenDevices;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
 
+    /**
+     * Shows the device list even if a watch was picked before.
+     */
+    public static final String EXTRA_PICK_DEVICE = "PICK_DEVICE";
+
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
@@ -58,6 +64,21 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (savedInstanceState == null) {
+            StartupTrace.launch();
+        }
+
+        // Known watch: go straight to it, DeviceControlActivity connects directly by address.
+        // No list, no permission prompt and no scan competing with the connection for the radio.
+        if (!getIntent().getBooleanExtra(EXTRA_PICK_DEVICE, false) &&
+                !(Preferences.readDeviceAddress(getApplicationContext()) == null) &&
+                !(Preferences.readDeviceName(getApplicationContext()) == null)) {
+            final Intent intent = new Intent(this, DeviceControlActivity.class);
+            startActivity(intent);
+            finish();
+            return;
+        }
+
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
 
@@ -82,12 +103,6 @@ public class DeviceScanActivity extends ListActivity {
         }
 
         requestPermissions(new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, 1);
-
-        if (!(Preferences.readDeviceAddress(getApplicationContext()) == null) &&
-                !(Preferences.readDeviceName(getApplicationContext()) == null)) {
-            final Intent intent = new Intent(this, DeviceControlActivity.class);
-            startActivity(intent);
-        }
     }
 
     @Override
@@ -110,7 +125,8 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
+                mSeenDevices.markCached();
+                mLeDeviceListAdapter.notifyDataSetChanged();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -133,7 +149,8 @@ public class DeviceScanActivity extends ListActivity {
             }
         }
 
-        // Initializes list view adapter.
+        // Initializes list view adapter with the watches seen before, selectable right away.
+        mSeenDevices = Preferences.readSeenDevices(getApplicationContext());
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
         scanLeDevice(true);
@@ -153,18 +170,17 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        Preferences.writeSeenDevices(getApplicationContext(), mSeenDevices);
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
+        final SeenDevices.Device device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         //intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         //intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        Preferences.writeDeviceName(getApplicationContext(), device.getName());
-        Preferences.writeDeviceAddress(getApplicationContext(), device.getAddress());
+        Preferences.writeDevice(getApplicationContext(), device.getName(), device.getAddress());
         if (mScanning) {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
             mScanning = false;
@@ -193,47 +209,45 @@ public class DeviceScanActivity extends ListActivity {
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    private static boolean isEzonDevice(String name) {
+        if (name != null) {
+            for (String prefix:ezonDevicesPrefixes) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Adapter for holding devices found through scanning, and the ones seen before.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                if (device.getName() != null) {
-                    for (String prefix:ezonDevicesPrefixes) {
-                        if (device.getName().startsWith(prefix)) {
-                            mLeDevices.add(device);
-                            return;
-                        }
-                    }
-                }
-                //mLeDevices.add(device);
+        public void addDevice(BluetoothDevice device, int rssi) {
+            if (isEzonDevice(device.getName())) {
+                mSeenDevices.onSeen(device.getName(), device.getAddress(), rssi,
+                        System.currentTimeMillis());
             }
         }
 
-        public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
-        }
-
-        public void clear() {
-            mLeDevices.clear();
+        public SeenDevices.Device getDevice(int position) {
+            return mSeenDevices.get(position);
         }
 
         @Override
         public int getCount() {
-            return mLeDevices.size();
+            return mSeenDevices.size();
         }
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mSeenDevices.get(i);
         }
 
         @Override
@@ -255,14 +269,23 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            SeenDevices.Device device = mSeenDevices.get(i);
             final String deviceName = device.getName();
 
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            if (device.isCached()) {
+                viewHolder.deviceAddress.setText(getString(R.string.device_cached,
+                        device.getAddress(),
+                        DateUtils.getRelativeTimeSpanString(device.getSeenAt())));
+            } else {
+                viewHolder.deviceAddress.setText(getString(R.string.device_live,
+                        device.getAddress(), device.getRssi()));
+            }
+            // Cached ones are dimmed until an advertisement confirms they are around.
+            view.setAlpha(device.isCached() ? 0.5f : 1f);
 
             return view;
         }
@@ -273,11 +296,11 @@ public class DeviceScanActivity extends ListActivity {
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
+                    mLeDeviceListAdapter.addDevice(device, rssi);
                     mLeDeviceListAdapter.notifyDataSetChanged();
                 }
             });
@@ -0,0 +1,1082 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection to one watch: its GATT handle, operation queue, steps transfer and history.
+ * {@link BluetoothLeService} keeps one session per device address.
+ *
+ * All GATT state is owned by the service's GATT thread: binder callbacks and calls from other
+ * threads are posted to it, and every change is published as an immutable
+ * {@link SessionState} that can be read from any thread.
+ */
+public class DeviceSession {
+    private final static String TAG = DeviceSession.class.getSimpleName();
+
+    // Gives up on a background sync that did not finish in time, e.g. watch out of range.
+    private static final long SYNC_TIMEOUT = 60 * 1000;
+    // An alert that could not be delivered within this is stale, the call is over.
+    private static final long ALERT_TIMEOUT = 30 * 1000;
+    // A steps transfer that made no progress this long after an alert is requested again.
+    private static final long STALL_TIMEOUT = 3 * 1000;
+
+    private final BluetoothLeService mService;
+    private final ConnectionSlots mConnectionSlots;
+    private final Handler mGattHandler;
+    private final Handler mMainHandler;
+    private final String mAddress;
+    private final AtomicReference<SessionState> mState;
+
+    // Confined to the GATT thread.
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+    private BluetoothGatt mBluetoothGatt;
+    private boolean isServicesDescovered = false;
+    private boolean mHoldsSlot = false;
+    private SessionRecorder mRecorder;
+    // Open trace sections, see Tracer.
+    private boolean mTracingConnect;
+    private boolean mTracingDiscovery;
+    private final WatchStateMirror mMirror;
+    private final WriteCredits mWriteCredits = new WriteCredits(WriteCredits.DEFAULT_CREDITS);
+    private final ClockDriftModel mDriftModel;
+
+    private BluetoothLeService.SyncCallback mSyncCallback;
+    private boolean mSyncStarted;
+    private boolean mSyncConnected;
+    private boolean mSyncTimeSynced;
+    private int mSyncNewSteps;
+
+    private byte[] mPendingAlert;
+    private long mPendingAlertPosted;
+    // Whether the connection was opened only to deliver an alert.
+    private boolean mAlertConnected;
+    private int mMinutesBeforeAlert;
+
+    DeviceSession(BluetoothLeService service, ConnectionSlots slots, Handler gattHandler,
+                  Handler mainHandler, String address, StepsHistory history) {
+        mService = service;
+        mConnectionSlots = slots;
+        mGattHandler = gattHandler;
+        mMainHandler = mainHandler;
+        mAddress = address;
+        mPipeline = new StepsPipeline(history, mPipelineListener);
+        mState = new AtomicReference<SessionState>(SessionState.disconnected(address));
+        mMirror = new WatchStateMirror(
+                WatchConfig.parse(SettingsRepository.get(service).getWatchConfig(address)));
+        mDriftModel = ClockDriftModel.parse(SettingsRepository.get(service)
+                .getString(Preferences.CLOCK_DRIFT + address), ClockDriftModel.DEFAULT_THRESHOLD);
+    }
+
+    private final StepsPipeline mPipeline;
+
+    private final StepsPipeline.Listener mPipelineListener = new StepsPipeline.Listener() {
+        @Override
+        public void onTransferStarted(LocalDate date) {
+            publish(mState.get().withTransfer(true, 0));
+            mService.onTransferStarted(DeviceSession.this);
+        }
+
+        @Override
+        public void onProgress(LocalDate date, int minutesReceived) {
+            publish(mState.get().withTransfer(true, minutesReceived));
+            mService.broadcastProgress(mAddress, date, minutesReceived);
+        }
+
+        @Override
+        public void onStored(LocalDate date, byte[] minutes, int newSteps, boolean changed,
+                IOException error) {
+            if (error != null) {
+                Log.e(TAG, "Unable to store steps of " + date, error);
+            }
+            publish(mState.get().withTransfer(false, 0));
+            mService.broadcastStepsAvailable(mAddress, date, changed);
+            mService.onTransferFinished(DeviceSession.this);
+            mSyncNewSteps = newSteps;
+            finishSync(true);
+        }
+    };
+
+    private final Runnable mSyncTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Sync of " + mAddress + " timed out");
+            // Still waiting behind other watches, give the place up as well.
+            if (mConnectionSlots.cancel(mConnectWhenGranted)) {
+                publish(mState.get().withConnectionState(SessionState.STATE_DISCONNECTED));
+            }
+            finishSync(false);
+        }
+    };
+
+    // Waits in ConnectionSlots until the controller has room for another connection.
+    private final Runnable mConnectWhenGranted = new Runnable() {
+        @Override
+        public void run() {
+            // A slot may be handed over by whichever thread released it.
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHoldsSlot = true;
+                    if (mState.get().getConnectionState() == SessionState.STATE_CONNECTING) {
+                        openGatt();
+                    } else {
+                        releaseSlot();
+                    }
+                }
+            });
+        }
+    };
+
+    // Called on binder threads; only copies what it needs and hands over to the GATT thread.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, final int newState) {
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         final int status) {
+            final byte[] value = copyValue(characteristic);
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final GattOperationQueue.Operation current = mOperationQueue.getCurrent();
+                    if (status == BluetoothGatt.GATT_SUCCESS
+                            && (current == null || current.isBroadcast())) {
+                        mService.broadcastData(mAddress, value);
+                    }
+                    mOperationQueue.onOperationComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         final int status) {
+            final byte[] value = copyValue(characteristic);
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mService.broadcastData(mAddress, value);
+                    }
+                    mOperationQueue.onOperationComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      final int status) {
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOperationQueue.onOperationComplete(status == BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // The characteristic is overwritten by the next notification, copy it right away.
+            final long nanos = System.nanoTime();
+            final long now = System.currentTimeMillis();
+            final byte[] value = copyValue(characteristic);
+            final boolean main = characteristic.getUuid().equals(SampleGattAttributes.EZON_CHARACTERISTIC);
+            mGattHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mService.broadcastData(mAddress, value);
+                    if (main) {
+                        record(SessionRecorder.TYPE_NOTIFICATION, nanos, value);
+                        onWatchTime(WatchCommands.parseTime(value), now);
+                        mPipeline.onNotification(value);
+                    }
+                }
+            });
+        }
+    };
+
+    private static byte[] copyValue(BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        return value == null ? null : value.clone();
+    }
+
+    private void publish(SessionState state) {
+        mState.set(state);
+    }
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int newState) {
+        if (gatt != mBluetoothGatt) {
+            // Late callback of a handle that was closed in the meantime.
+            return;
+        }
+        endConnectTrace();
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            publish(mState.get().withConnectionState(SessionState.STATE_CONNECTED));
+            mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_CONNECTED, mAddress);
+            Log.i(TAG, "Connected to GATT server " + mAddress);
+            // Attempts to discover services after successful connection.
+            if (isServicesDescovered) {
+                Log.i(TAG, "Services are already discovered");
+                runPendingAlert();
+                runPendingSync();
+            }
+            else {
+                isServicesDescovered = mBluetoothGatt.discoverServices();
+                if (isServicesDescovered) {
+                    mTracingDiscovery = true;
+                    Tracer.beginAsync("discover " + mAddress, mAddress.hashCode());
+                }
+                Log.i(TAG, "Attempting to start service discovery:" +
+                        isServicesDescovered);
+            }
+
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            publish(mState.get().withConnectionState(SessionState.STATE_DISCONNECTED));
+            endDiscoveryTrace();
+            mOperationQueue.clear();
+            mWriteCredits.reset();
+            mAlertConnected = false;
+            releaseSlot();
+            abortTransfer();
+            Log.i(TAG, "Disconnected from GATT server " + mAddress);
+            mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_DISCONNECTED, mAddress);
+            finishSync(false);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (gatt != mBluetoothGatt) {
+            return;
+        }
+        endDiscoveryTrace();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            // Resolved once here, commands then look characteristics up by UUID.
+            publish(mState.get().withCharacteristics(
+                    new GattCharacteristicRegistry(gatt.getServices())));
+            mService.broadcastUpdate(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED, mAddress);
+            runPendingAlert();
+            runPendingSync();
+        } else {
+            isServicesDescovered = false;
+            Log.w(TAG, "onServicesDiscovered received: " + status);
+        }
+    }
+
+    private void endConnectTrace() {
+        if (mTracingConnect) {
+            mTracingConnect = false;
+            Tracer.endAsync("connect " + mAddress, mAddress.hashCode());
+        }
+    }
+
+    private void endDiscoveryTrace() {
+        if (mTracingDiscovery) {
+            mTracingDiscovery = false;
+            Tracer.endAsync("discover " + mAddress, mAddress.hashCode());
+        }
+    }
+
+    private void abortTransfer() {
+        if (mPipeline.isActive()) {
+            Log.w(TAG, "Steps transfer from " + mAddress + " interrupted");
+            mPipeline.cancel();
+            publish(mState.get().withTransfer(false, 0));
+            mService.onTransferFinished(this);
+        }
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public StepsHistory getStepsHistory() {
+        return mPipeline.getStepsHistory();
+    }
+
+    /**
+     * Starts recording writes and notifications of the main characteristic to {@code file}.
+     */
+    public void startRecording(final File file) {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopRecordingOnGattThread();
+                try {
+                    mRecorder = new SessionRecorder(new FileOutputStream(file));
+                    Log.i(TAG, "Recording " + mAddress + " to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to record to " + file, e);
+                }
+            }
+        });
+    }
+
+    public void stopRecording() {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopRecordingOnGattThread();
+            }
+        });
+    }
+
+    private void stopRecordingOnGattThread() {
+        if (mRecorder == null) {
+            return;
+        }
+        try {
+            mRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to finish recording", e);
+        }
+        mRecorder = null;
+    }
+
+    private void record(int type, long nanos, byte[] value) {
+        if (mRecorder == null) {
+            return;
+        }
+        try {
+            if (type == SessionRecorder.TYPE_WRITE) {
+                mRecorder.recordWrite(nanos, value);
+            } else {
+                mRecorder.recordNotification(nanos, value);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Recording failed, stopping it", e);
+            stopRecordingOnGattThread();
+        }
+    }
+
+    // Every write to the watch goes out here, so the pipeline and the recorder see all of them.
+    private boolean writeValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return writeValue(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    private boolean writeValue(BluetoothGattCharacteristic characteristic, byte[] value,
+                               int writeType) {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        final long nanos = System.nanoTime();
+        characteristic.setValue(value);
+        characteristic.setWriteType(writeType);
+        final boolean written = mBluetoothGatt.writeCharacteristic(characteristic);
+        // Only writes the stack took count, a refused one may be retried. Callbacks are posted
+        // to this thread, so the pipeline still sees the write before any answer to it.
+        if (written && characteristic.getUuid().equals(SampleGattAttributes.EZON_CHARACTERISTIC)) {
+            record(SessionRecorder.TYPE_WRITE, nanos, value);
+            mPipeline.onWrite(value);
+        }
+        if (!written && StepsTransfer.parseRequest(value) != null) {
+            // The request never left, no file is coming.
+            abortTransfer();
+        }
+        return written;
+    }
+
+    /**
+     * @return The latest state of the session; safe to call from any thread.
+     */
+    public SessionState getState() {
+        return mState.get();
+    }
+
+    /**
+     * Connects to the watch, once a connection slot is free.
+     */
+    public void connect() {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Someone wants the connection now, it stays after the alert.
+                mAlertConnected = false;
+                connectOnGattThread();
+            }
+        });
+    }
+
+    private void connectOnGattThread() {
+        if (mState.get().getConnectionState() != SessionState.STATE_DISCONNECTED) {
+            return;
+        }
+        publish(mState.get().withConnectionState(SessionState.STATE_CONNECTING));
+        if (mHoldsSlot) {
+            openGatt();
+        } else {
+            mConnectionSlots.acquire(mConnectWhenGranted);
+        }
+    }
+
+    private void openGatt() {
+        if (!mTracingConnect) {
+            mTracingConnect = true;
+            Tracer.beginAsync("connect " + mAddress, mAddress.hashCode());
+        }
+        // Previously connected device.  Try to reconnect.
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (!mBluetoothGatt.connect()) {
+                publish(mState.get().withConnectionState(SessionState.STATE_DISCONNECTED));
+                releaseSlot();
+                endConnectTrace();
+            }
+            return;
+        }
+
+        final BluetoothDevice device = mService.getBluetoothAdapter().getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            publish(mState.get().withConnectionState(SessionState.STATE_DISCONNECTED));
+            releaseSlot();
+            endConnectTrace();
+            return;
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mBluetoothGatt = device.connectGatt(mService, false, mGattCallback);
+        Log.d(TAG, "Trying to create a new connection to " + mAddress);
+    }
+
+    private void releaseSlot() {
+        if (mHoldsSlot) {
+            mHoldsSlot = false;
+            mConnectionSlots.release();
+        }
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection.
+     */
+    public void disconnect() {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                disconnectOnGattThread();
+            }
+        });
+    }
+
+    private void disconnectOnGattThread() {
+        if (mConnectionSlots.cancel(mConnectWhenGranted) || mBluetoothGatt == null) {
+            publish(mState.get().withConnectionState(SessionState.STATE_DISCONNECTED));
+            return;
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    /**
+     * Releases the GATT handle and the connection slot.
+     */
+    public void close() {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionSlots.cancel(mConnectWhenGranted);
+                mOperationQueue.clear();
+                if (mBluetoothGatt != null) {
+                    mBluetoothGatt.close();
+                    mBluetoothGatt = null;
+                }
+                // A new BluetoothGatt starts without services, they have to be discovered again.
+                isServicesDescovered = false;
+                abortTransfer();
+                stopRecordingOnGattThread();
+                publish(SessionState.disconnected(mAddress));
+                releaseSlot();
+                endConnectTrace();
+                endDiscoveryTrace();
+                finishSync(false);
+            }
+        });
+    }
+
+    public void readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        enqueue(new GattOperationQueue.Operation("read") {
+            @Override
+            public boolean execute() {
+                return mBluetoothGatt != null && mBluetoothGatt.readCharacteristic(characteristic);
+            }
+        });
+    }
+
+    /**
+     * Queues a write of the characteristic's current value. The value is captured now, so the
+     * characteristic may be reused for the next command right away.
+     */
+    public void writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        enqueue(new GattOperationQueue.Operation("write") {
+            @Override
+            public boolean execute() {
+                return writeValue(characteristic, value);
+            }
+        });
+    }
+
+    /**
+     * Queues a write of {@code value} to the characteristic with the given UUID.
+     *
+     * @return false if the services are not discovered or the watch has no such characteristic.
+     */
+    public boolean write(UUID uuid, final byte[] value) {
+        final GattCharacteristicRegistry characteristics = mState.get().getCharacteristics();
+        final BluetoothGattCharacteristic characteristic =
+                characteristics == null ? null : characteristics.get(uuid);
+        if (characteristic == null) {
+            Log.w(TAG, "Characteristic " + uuid + " of " + mAddress + " not discovered");
+            return false;
+        }
+        enqueue(new GattOperationQueue.Operation("write") {
+            @Override
+            public boolean execute() {
+                return writeValue(characteristic, value);
+            }
+        });
+        return true;
+    }
+
+    public void setCharacteristicNotification(final BluetoothGattCharacteristic characteristic,
+                                              final boolean enabled) {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                enableNotification(characteristic, enabled);
+            }
+        });
+    }
+
+    private void enableNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Not connected to " + mAddress);
+            return;
+        }
+        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        if (characteristic.getUuid().equals(SampleGattAttributes.EZON_CHARACTERISTIC)) {
+            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                    SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+            final byte[] value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : new byte[]{0x00, 0x00};
+            mOperationQueue.enqueue(new GattOperationQueue.Operation("descriptor") {
+                @Override
+                public boolean execute() {
+                    descriptor.setValue(value);
+                    return mBluetoothGatt != null && mBluetoothGatt.writeDescriptor(descriptor);
+                }
+            });
+        }
+    }
+
+    private void enqueue(final GattOperationQueue.Operation operation) {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mBluetoothGatt == null) {
+                    Log.w(TAG, "Not connected to " + mAddress + ", dropping " + operation);
+                    return;
+                }
+                mOperationQueue.enqueue(operation);
+            }
+        });
+    }
+
+    /**
+     * Requests the steps file of a given day.
+     *
+     * @return Return true if the request was queued.
+     */
+    public boolean requestSteps(final LocalDate date) {
+        if (!mState.get().isServicesDiscovered()) {
+            Log.w(TAG, "Services of " + mAddress + " not discovered");
+            return false;
+        }
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                requestStepsOnGattThread(date);
+            }
+        });
+        return true;
+    }
+
+    private void requestStepsOnGattThread(LocalDate date) {
+        final BluetoothGattCharacteristic characteristic = findEzonCharacteristic();
+        if (characteristic == null) {
+            Log.w(TAG, "Ezon characteristic of " + mAddress + " not discovered");
+            return;
+        }
+        final byte[] request = StepsTransfer.buildRequest(date);
+        mOperationQueue.enqueue(new GattOperationQueue.Operation("steps") {
+            @Override
+            public boolean execute() {
+                return writeValue(characteristic, request);
+            }
+        });
+    }
+
+    /**
+     * Shows an alert on the watch as soon as possible: ahead of everything queued, connecting
+     * first if needed. A steps transfer the watch drops meanwhile is requested again.
+     *
+     * @param posted Wall clock time the alert was raised, to measure the delivery latency.
+     */
+    public void sendAlert(final byte[] frame, final long posted) {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingAlert = frame;
+                mPendingAlertPosted = posted;
+                final SessionState state = mState.get();
+                if (state.isConnected() && state.isServicesDiscovered()) {
+                    runPendingAlert();
+                } else {
+                    if (state.getConnectionState() == SessionState.STATE_DISCONNECTED) {
+                        mAlertConnected = true;
+                    }
+                    connectOnGattThread();
+                }
+            }
+        });
+    }
+
+    private void runPendingAlert() {
+        final byte[] frame = mPendingAlert;
+        final long posted = mPendingAlertPosted;
+        final BluetoothGattCharacteristic characteristic = findEzonCharacteristic();
+        if (frame == null || characteristic == null) {
+            return;
+        }
+        mPendingAlert = null;
+        if (System.currentTimeMillis() - posted > ALERT_TIMEOUT) {
+            Log.w(TAG, "Dropping stale alert for " + mAddress);
+            releaseAlertConnection();
+            return;
+        }
+        mMinutesBeforeAlert = mPipeline.getMinutesReceived();
+        mOperationQueue.enqueueUrgent(new GattOperationQueue.Operation("alert") {
+            @Override
+            public boolean execute() {
+                return writeValue(characteristic, frame);
+            }
+
+            @Override
+            public void onComplete(boolean success) {
+                if (success) {
+                    mService.onAlertDelivered(mAddress, System.currentTimeMillis() - posted);
+                }
+                if (mPipeline.isActive()) {
+                    mGattHandler.removeCallbacks(mResumeStalledTransfer);
+                    mGattHandler.postDelayed(mResumeStalledTransfer, STALL_TIMEOUT);
+                }
+                releaseAlertConnection();
+            }
+        });
+    }
+
+    // Gives the connection slot back if the alert was the only reason to connect.
+    private void releaseAlertConnection() {
+        if (!mAlertConnected || mSyncCallback != null || mPipeline.isActive()
+                || mPendingAlert != null) {
+            return;
+        }
+        mAlertConnected = false;
+        disconnectOnGattThread();
+    }
+
+    private final Runnable mResumeStalledTransfer = new Runnable() {
+        @Override
+        public void run() {
+            final LocalDate date = mPipeline.getDate();
+            if (!mPipeline.isActive() || date == null
+                    || mPipeline.getMinutesReceived() != mMinutesBeforeAlert) {
+                return;
+            }
+            // The file carries no offset to continue from, so it starts over.
+            Log.w(TAG, "Steps transfer from " + mAddress + " stalled after an alert, requesting again");
+            requestStepsOnGattThread(date);
+        }
+    };
+
+    /**
+     * See {@link BluetoothLeService#startSync(String, BluetoothLeService.SyncCallback)}.
+     */
+    void startSync(final BluetoothLeService.SyncCallback callback) {
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSyncCallback != null) {
+                    notifySyncFinished(callback, false, 0, false);
+                    return;
+                }
+                mSyncCallback = callback;
+                mSyncStarted = false;
+                mSyncNewSteps = 0;
+                mSyncTimeSynced = false;
+                mSyncConnected = false;
+                // Counts the wait for a connection slot too, a session stuck in the queue
+                // would otherwise refuse every later sync.
+                mGattHandler.postDelayed(mSyncTimeout, SYNC_TIMEOUT);
+                final SessionState state = mState.get();
+                if (state.isConnected() && state.isServicesDiscovered()) {
+                    runPendingSync();
+                } else {
+                    mSyncConnected = state.getConnectionState() == SessionState.STATE_DISCONNECTED;
+                    connectOnGattThread();
+                }
+                // Takes over a connection opened just for an alert and closes it when done.
+                if (mAlertConnected) {
+                    mAlertConnected = false;
+                    mSyncConnected = true;
+                }
+            }
+        });
+    }
+
+    private void runPendingSync() {
+        if (mSyncCallback == null || mSyncStarted) {
+            return;
+        }
+        final BluetoothGattCharacteristic characteristic = findEzonCharacteristic();
+        if (characteristic == null) {
+            return;
+        }
+        mSyncStarted = true;
+        // Everything goes out over the one connection, back to back. Settings the watch
+        // already acknowledged are skipped, usually leaving just the steps request.
+        enableNotification(characteristic, true);
+        final boolean syncTime = mDriftModel.isResyncDue(System.currentTimeMillis());
+        sendChanges(characteristic, Preferences.readWatchConfig(mService), syncTime);
+        requestStepsOnGattThread(LocalDate.now());
+    }
+
+    /**
+     * Brings the watch to the configuration the user asked for, sending only what differs from
+     * what it last acknowledged.
+     *
+     * @param syncTime Whether to set the clock as well.
+     * @return False if the services are not discovered.
+     */
+    public boolean applyConfig(final WatchConfig desired, final boolean syncTime) {
+        if (!mState.get().isServicesDiscovered()) {
+            Log.w(TAG, "Services of " + mAddress + " not discovered");
+            return false;
+        }
+        mGattHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGattCharacteristic characteristic = findEzonCharacteristic();
+                if (characteristic == null || mBluetoothGatt == null) {
+                    Log.w(TAG, "Not connected to " + mAddress);
+                    return;
+                }
+                sendChanges(characteristic, desired, syncTime);
+            }
+        });
+        return true;
+    }
+
+    private void sendChanges(final BluetoothGattCharacteristic characteristic,
+                             WatchConfig desired, boolean syncTime) {
+        final List<WatchStateMirror.Change> changes = mMirror.diff(desired, syncTime);
+        if (changes.isEmpty()) {
+            Log.d(TAG, mAddress + " is up to date");
+        }
+        // The time comes last in the diff, so frame i is change i.
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        for (WatchStateMirror.Change change : changes) {
+            if (change.getType() != WatchStateMirror.Change.TIME) {
+                frames.add(change.buildFrame(null));
+            }
+        }
+        if (!frames.isEmpty()) {
+            enqueueSequence(characteristic, frames, new SequenceListener() {
+                @Override
+                public void onConfirmed(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        onAcknowledged(changes.get(i));
+                    }
+                }
+            });
+        }
+        for (final WatchStateMirror.Change change : changes) {
+            if (change.getType() == WatchStateMirror.Change.TIME) {
+                enqueueClockSync(characteristic, change);
+            }
+        }
+    }
+
+    private interface SequenceListener {
+        /**
+         * Frames {@code from} to {@code to}, exclusive, are known to have reached the watch.
+         */
+        void onConfirmed(int from, int to);
+    }
+
+    /**
+     * Queues frames that go out back to back. Where the characteristic allows it they are
+     * written without response under {@link WriteCredits} flow control, so they do not wait
+     * for a round trip each.
+     */
+    private void enqueueSequence(final BluetoothGattCharacteristic characteristic,
+                                 final List<byte[]> frames, final SequenceListener listener) {
+        final boolean noResponse = (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        // First frame not confirmed yet, shared by the operations of the sequence.
+        final int[] unconfirmed = {0};
+        for (int i = 0; i < frames.size(); i++) {
+            final int index = i;
+            final byte[] frame = frames.get(i);
+            mOperationQueue.enqueue(new GattOperationQueue.Operation("sequence " + i) {
+                private boolean mWithResponse;
+
+                @Override
+                public boolean execute() {
+                    mWithResponse = !noResponse
+                            || mWriteCredits.needsResponse(index == frames.size() - 1);
+                    if (!mWithResponse && !writeValue(characteristic, frame,
+                            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)) {
+                        // Stack buffers full or the watch refuses them, acknowledge from now.
+                        Log.w(TAG, "Write without response to " + mAddress + " failed, falling back");
+                        mWriteCredits.onError();
+                        mWithResponse = true;
+                    } else if (!mWithResponse) {
+                        mWriteCredits.onSent(false);
+                        return true;
+                    }
+                    if (!writeValue(characteristic, frame)) {
+                        // The queue drops refused operations without completing them, but
+                        // later frames must not confirm this one.
+                        onComplete(false);
+                        return false;
+                    }
+                    return true;
+                }
+
+                @Override
+                public void onComplete(boolean success) {
+                    if (!success) {
+                        mWriteCredits.onError();
+                        unconfirmed[0] = index + 1;
+                        return;
+                    }
+                    if (mWithResponse) {
+                        mWriteCredits.onAcknowledged();
+                        if (listener != null) {
+                            listener.onConfirmed(unconfirmed[0], index + 1);
+                        }
+                        unconfirmed[0] = index + 1;
+                    }
+                }
+            });
+        }
+    }
+
+    private void onAcknowledged(WatchStateMirror.Change change) {
+        final WatchConfig acknowledged = mMirror.onAcknowledged(change, System.currentTimeMillis());
+        SettingsRepository.get(mService).edit()
+                .putWatchConfig(mAddress, acknowledged.toString())
+                .commit();
+        if (change.getType() == WatchStateMirror.Change.TIME) {
+            mSyncTimeSynced = true;
+        }
+    }
+
+    /**
+     * Feeds a time reported by the watch to the drift model.
+     *
+     * @param received Phone time the report arrived.
+     */
+    private void onWatchTime(LocalDateTime watchTime, long received) {
+        if (watchTime == null) {
+            return;
+        }
+        // Whole seconds: on average the watch was half a second into the reported one.
+        final long watch = watchTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + 500;
+        mDriftModel.addObservation(received, watch - received);
+        saveDriftModel();
+        Log.d(TAG, "Clock of " + mAddress + " off by " + (watch - received) + " ms, drift "
+                + mDriftModel.getDriftRate() * 1e6 + " ppm");
+    }
+
+    private void saveDriftModel() {
+        SettingsRepository.get(mService).edit()
+                .putString(Preferences.CLOCK_DRIFT + mAddress, mDriftModel.toString())
+                .commit();
+    }
+
+    /**
+     * Sets the watch clock compensating for the radio delay, see {@link ClockSync}.
+     */
+    private void enqueueClockSync(final BluetoothGattCharacteristic characteristic,
+                                  final WatchStateMirror.Change change) {
+        final ClockSync clockSync = new ClockSync();
+        // Probes are reads, they take the same request/response round trip as a write and
+        // leave the watch alone. A TIME write as probe would set the clock uncompensated. If
+        // the characteristic cannot be read there is no harmless probe; the clock is then set
+        // without compensation.
+        final boolean readable =
+                (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+        if (!readable) {
+            Log.w(TAG, "Cannot probe the latency to " + mAddress + ", setting time as is");
+        }
+        for (int i = 0; readable && i < ClockSync.PROBES; i++) {
+            mOperationQueue.enqueue(new GattOperationQueue.Operation("time probe") {
+                private long mStart;
+
+                @Override
+                public boolean execute() {
+                    mStart = System.nanoTime();
+                    return mBluetoothGatt != null
+                            && mBluetoothGatt.readCharacteristic(characteristic);
+                }
+
+                @Override
+                public void onComplete(boolean success) {
+                    if (success) {
+                        clockSync.addProbe((System.nanoTime() - mStart) / 1000000);
+                    }
+                }
+
+                @Override
+                public boolean isBroadcast() {
+                    // Only the round trip matters, the value is not news to anyone.
+                    return false;
+                }
+            });
+        }
+        mOperationQueue.enqueue(new GattOperationQueue.Operation("time") {
+            private long mTarget;
+            private long mSent;
+            private long mStart;
+            private final GattOperationQueue.Operation mOperation = this;
+
+            // Occupies the queue from the moment it is scheduled until the watch answered, so
+            // nothing else can delay the write.
+            private final Runnable mSend = new Runnable() {
+                @Override
+                public void run() {
+                    if (!mOperationQueue.isCurrent(mOperation)) {
+                        return;
+                    }
+                    final byte[] frame = WatchCommands.buildTime(LocalDateTime.ofInstant(
+                            Instant.ofEpochMilli(mTarget), ZoneId.systemDefault()));
+                    mSent = System.currentTimeMillis();
+                    mStart = System.nanoTime();
+                    if (!writeValue(characteristic, frame)) {
+                        mOperationQueue.onOperationComplete(false);
+                    }
+                }
+            };
+
+            @Override
+            public boolean execute() {
+                final long now = System.currentTimeMillis();
+                mTarget = clockSync.getTargetTime(now);
+                mGattHandler.postDelayed(mSend, clockSync.getSendTime(mTarget) - now);
+                return true;
+            }
+
+            @Override
+            public void onComplete(boolean success) {
+                if (!success) {
+                    Log.w(TAG, "Time of " + mAddress + " not set");
+                    return;
+                }
+                final long roundTrip = (System.nanoTime() - mStart) / 1000000;
+                Log.i(TAG, "Time of " + mAddress + " set, one-way delay "
+                        + clockSync.getOneWayDelay() + " ms from " + clockSync.getProbeCount()
+                        + " probes, sent " + (mSent - clockSync.getSendTime(mTarget))
+                        + " ms late, round trip " + roundTrip + " ms, offset "
+                        + ClockSync.getOffset(mTarget, mSent, roundTrip) + " ms");
+                onAcknowledged(change);
+                mDriftModel.onClockSet(mSent, ClockSync.getOffset(mTarget, mSent, roundTrip));
+                saveDriftModel();
+            }
+        });
+    }
+
+    private void finishSync(boolean success) {
+        final BluetoothLeService.SyncCallback callback = mSyncCallback;
+        if (callback == null) {
+            return;
+        }
+        mSyncCallback = null;
+        mGattHandler.removeCallbacks(mSyncTimeout);
+        // Keep the radio on only as long as the sync needed it.
+        if (mSyncConnected) {
+            disconnectOnGattThread();
+        }
+        notifySyncFinished(callback, success, mSyncNewSteps, success && mSyncTimeSynced);
+    }
+
+    private void notifySyncFinished(final BluetoothLeService.SyncCallback callback,
+                                    final boolean success, final int newSteps,
+                                    final boolean timeSynced) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSyncFinished(success, newSteps, timeSynced);
+            }
+        });
+    }
+
+    private BluetoothGattCharacteristic findEzonCharacteristic() {
+        final GattCharacteristicRegistry characteristics = mState.get().getCharacteristics();
+        return characteristics == null ? null : characteristics.getMain();
+    }
+}
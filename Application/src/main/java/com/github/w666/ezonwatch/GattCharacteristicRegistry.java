@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Characteristics of a connected watch, keyed by {@code UUID}.
+ *
+ * Built once when service discovery completes and never modified afterwards, so it can be
+ * shared between threads. The characteristics the app talks to are resolved up front.
+ */
+public final class GattCharacteristicRegistry {
+
+    private final List<BluetoothGattService> mServices;
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics;
+    private final BluetoothGattCharacteristic mMain;
+    private final BluetoothGattCharacteristic mReset;
+
+    public GattCharacteristicRegistry(List<BluetoothGattService> services) {
+        mServices = Collections.unmodifiableList(new ArrayList<BluetoothGattService>(services));
+        mCharacteristics = new HashMap<UUID, BluetoothGattCharacteristic>();
+        for (BluetoothGattService service : mServices) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                // The first one wins if a UUID shows up in several services.
+                if (!mCharacteristics.containsKey(characteristic.getUuid())) {
+                    mCharacteristics.put(characteristic.getUuid(), characteristic);
+                }
+            }
+        }
+        mMain = mCharacteristics.get(SampleGattAttributes.EZON_CHARACTERISTIC);
+        mReset = SampleGattAttributes.EZON_RESET_CHARACTERISTIC == null ? null
+                : mCharacteristics.get(SampleGattAttributes.EZON_RESET_CHARACTERISTIC);
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * @return The characteristic with the given UUID, or null if the watch has none.
+     */
+    public BluetoothGattCharacteristic get(UUID uuid) {
+        return mCharacteristics.get(uuid);
+    }
+
+    /**
+     * @return The main Ezon characteristic all commands go to, or null if it was not found.
+     */
+    public BluetoothGattCharacteristic getMain() {
+        return mMain;
+    }
+
+    /**
+     * @return The reset characteristic, or null if the watch does not expose one.
+     */
+    public BluetoothGattCharacteristic getReset() {
+        return mReset;
+    }
+}
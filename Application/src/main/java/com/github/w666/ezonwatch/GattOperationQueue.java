@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs GATT operations one at a time.
+ *
+ * {@code BluetoothGatt} refuses a read or write while another one is outstanding, so every
+ * operation is queued here and started only after the callback of the previous one arrived.
+ * Not thread-safe: a queue belongs to the thread that owns its {@code BluetoothGatt}.
+ */
+public class GattOperationQueue {
+
+    public abstract static class Operation {
+        private final String mName;
+
+        protected Operation(String name) {
+            mName = name;
+        }
+
+        /**
+         * Starts the operation.
+         *
+         * @return False if the stack refused it; the queue then moves on to the next one.
+         */
+        public abstract boolean execute();
+
+        /**
+         * Called when the callback of a started operation arrived.
+         *
+         * @param success Whether the remote side acknowledged it.
+         */
+        public void onComplete(boolean success) {
+        }
+
+        /**
+         * @return Whether the value read or written is passed on to clients; false for
+         *         operations the session only runs for itself.
+         */
+        public boolean isBroadcast() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+    private Operation mCurrent;
+    // Trace cookie of the current operation.
+    private int mCookie;
+
+    public void enqueue(Operation operation) {
+        mQueue.add(operation);
+        if (mCurrent == null) {
+            next();
+        }
+    }
+
+    /**
+     * Queues an operation ahead of all pending ones. It still waits for the current one, an
+     * outstanding GATT operation cannot be interrupted.
+     */
+    public void enqueueUrgent(Operation operation) {
+        mQueue.addFirst(operation);
+        if (mCurrent == null) {
+            next();
+        }
+    }
+
+    /**
+     * Called from the GATT callback that completes the current operation.
+     */
+    public void onOperationComplete(boolean success) {
+        final Operation completed = mCurrent;
+        mCurrent = null;
+        if (completed != null) {
+            Tracer.endAsync("gatt " + completed, mCookie);
+            completed.onComplete(success);
+        }
+        next();
+    }
+
+    /**
+     * Drops all pending operations, e.g. after a disconnect.
+     */
+    public void clear() {
+        mQueue.clear();
+        if (mCurrent != null) {
+            Tracer.endAsync("gatt " + mCurrent, mCookie);
+        }
+        mCurrent = null;
+    }
+
+    /**
+     * @return Whether the operation was started and did not complete yet.
+     */
+    public boolean isCurrent(Operation operation) {
+        return mCurrent == operation;
+    }
+
+    /**
+     * @return The operation that was started and did not complete yet, or null.
+     */
+    public Operation getCurrent() {
+        return mCurrent;
+    }
+
+    public boolean isIdle() {
+        return mCurrent == null && mQueue.isEmpty();
+    }
+
+    private void next() {
+        while (!mQueue.isEmpty()) {
+            final Operation operation = mQueue.poll();
+            Tracer.beginAsync("gatt " + operation, ++mCookie);
+            if (operation.execute()) {
+                mCurrent = operation;
+                return;
+            }
+            Tracer.endAsync("gatt " + operation, mCookie);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.Arrays;
+
+/**
+ * The last {@link #SAMPLES} latencies of something, with percentiles and a target to compare
+ * them to. Thread-safe.
+ */
+public class LatencyTracker {
+    public static final int SAMPLES = 64;
+
+    private final String mName;
+    private final long mTarget;
+    private final long[] mSamples = new long[SAMPLES];
+    private int mCount;
+    private int mMissed;
+
+    /**
+     * @param target Latency most samples should stay under, in milliseconds.
+     */
+    public LatencyTracker(String name, long target) {
+        mName = name;
+        mTarget = target;
+    }
+
+    /**
+     * @return Whether the sample met the target.
+     */
+    public synchronized boolean add(long latency) {
+        mSamples[mCount % SAMPLES] = latency;
+        mCount++;
+        if (latency > mTarget) {
+            mMissed++;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Samples over the target, of all ever added.
+     */
+    public synchronized int getMissed() {
+        return mMissed;
+    }
+
+    /**
+     * @param percent 0 to 100.
+     * @return Latency under which {@code percent} of the kept samples are, 0 without samples.
+     */
+    public synchronized long getPercentile(int percent) {
+        final int size = Math.min(mCount, SAMPLES);
+        if (size == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        // Nearest rank.
+        return sorted[Math.max(0, Math.min(size - 1, (size * percent + 99) / 100 - 1))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": p50 " + getPercentile(50) + " ms, p95 " + getPercentile(95)
+                + " ms, " + mMissed + " of " + mCount + " over " + mTarget + " ms";
+    }
+}
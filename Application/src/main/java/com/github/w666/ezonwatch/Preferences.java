@@ -4,36 +4,52 @@
 package com.github.w666.ezonwatch;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Static shortcuts to the {@link SettingsRepository}.
+ */
 public class Preferences {
-    private static String PREFS_NAME = "EzonAppPrefs";
     public static String DEVICE_NAME = "ezon_device_name";
     public static String DEVICE_ADDR = "ezon_device_addess";
+    public static String DEVICE_ADDRS = "ezon_device_addresses";
     public static String EZON_STEPS_TARGET = "ezon_steps_target";
+    public static String SYNC_INTERVAL = "sync_interval";
+    public static String LAST_SYNC = "last_sync";
+    public static String LAST_SYNC_ATTEMPT = "last_sync_attempt";
+    // Target and alarm the user asked for, sent to every watch that does not have them yet.
+    public static String WATCH_CONFIG = "watch_config";
+    // ClockDriftModel of a watch, suffixed with its address.
+    public static String CLOCK_DRIFT = "clock_drift_";
+    // Packages whose notifications are forwarded to the watch, calls always are.
+    public static String FORWARD_APPS = "forward_apps";
+    // SeenDevices of recent scans, listed before the next scan finds them.
+    public static String SEEN_DEVICES = "seen_devices";
 
     public static String read (Context context, String name) {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_NAME, 0);
-        return settings.getString(name, null);
+        return SettingsRepository.get(context).getString(name);
     }
 
     public static int readInt (Context context, String name) {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_NAME, 0);
-        return settings.getInt(name, 0);
+        return SettingsRepository.get(context).getInt(name);
+    }
+
+    public static long readLong (Context context, String name) {
+        return SettingsRepository.get(context).getLong(name);
     }
 
     public static void write (Context context, String name, String value) {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_NAME, 0);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putString(name, value);
-        editor.apply();
+        SettingsRepository.get(context).edit().putString(name, value).commit();
     }
 
     public static void write (Context context, String name, int value) {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_NAME, 0);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putInt(name, value);
-        editor.apply();
+        SettingsRepository.get(context).edit().putInt(name, value).commit();
+    }
+
+    public static void write (Context context, String name, long value) {
+        SettingsRepository.get(context).edit().putLong(name, value).commit();
     }
 
     public static String readDeviceName (Context context) {
@@ -44,6 +60,30 @@ public class Preferences {
         return read(context, DEVICE_ADDR);
     }
 
+    /**
+     * @return Addresses of all watches ever picked, synced in the background.
+     */
+    public static Set<String> readDeviceAddresses (Context context) {
+        Set<String> addresses = new HashSet<String>(SettingsRepository.get(context).getStringSet(DEVICE_ADDRS));
+        String current = readDeviceAddress(context);
+        if (current != null) {
+            addresses.add(current);
+        }
+        return addresses;
+    }
+
+    public static Set<String> readForwardApps (Context context) {
+        return SettingsRepository.get(context).getStringSet(FORWARD_APPS);
+    }
+
+    public static SeenDevices readSeenDevices (Context context) {
+        return SeenDevices.parse(read(context, SEEN_DEVICES), System.currentTimeMillis());
+    }
+
+    public static void writeSeenDevices (Context context, SeenDevices devices) {
+        write(context, SEEN_DEVICES, devices.toString());
+    }
+
     public static int readStepsTarget (Context context) {
         return readInt(context, EZON_STEPS_TARGET);
     }
@@ -56,7 +96,33 @@ public class Preferences {
         write(context, DEVICE_ADDR, value);
     }
 
+    public static void addDeviceAddress (Context context, String value) {
+        SettingsRepository.get(context).edit().addToStringSet(DEVICE_ADDRS, value).commit();
+    }
+
+    /**
+     * Makes the watch the current one and adds it to the synced ones, in a single commit.
+     */
+    public static void writeDevice (Context context, String name, String address) {
+        SettingsRepository.get(context).edit()
+                .putString(DEVICE_NAME, name)
+                .putString(DEVICE_ADDR, address)
+                .addToStringSet(DEVICE_ADDRS, address)
+                .commit();
+    }
+
     public static void writeStepsTarget (Context context, int value) {
-        write(context, EZON_STEPS_TARGET, value);
+        SettingsRepository.get(context).edit()
+                .putInt(EZON_STEPS_TARGET, value)
+                .putString(WATCH_CONFIG, readWatchConfig(context).withTarget(value).toString())
+                .commit();
+    }
+
+    public static WatchConfig readWatchConfig (Context context) {
+        return WatchConfig.parse(read(context, WATCH_CONFIG));
+    }
+
+    public static void writeWatchConfig (Context context, WatchConfig config) {
+        write(context, WATCH_CONFIG, config.toString());
     }
 }
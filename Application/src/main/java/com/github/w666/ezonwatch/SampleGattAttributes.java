@@ -17,16 +17,23 @@
 package com.github.w666.ezonwatch;
 
 import java.util.HashMap;
+import java.util.UUID;
 
 public class SampleGattAttributes {
-    private static HashMap<String, String> attributes = new HashMap();
-    public static String EZON_CHARACTERISTIC = "0000ffb2-0000-1000-8000-00805f9b34fb";
+    private static HashMap<UUID, String> attributes = new HashMap<UUID, String>();
+    public static final UUID EZON_CHARACTERISTIC =
+            UUID.fromString("0000ffb2-0000-1000-8000-00805f9b34fb");
+    // Not identified on any watch so far; set it once the reset characteristic is known.
+    public static final UUID EZON_RESET_CHARACTERISTIC = null;
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     static {
         attributes.put(EZON_CHARACTERISTIC, "Main ezon characteristic");
+        attributes.put(CLIENT_CHARACTERISTIC_CONFIG, "Client characteristic configuration");
     }
 
-    public static String lookup(String uuid, String defaultName) {
+    public static String lookup(UUID uuid, String defaultName) {
         String name = attributes.get(uuid);
         return name == null ? defaultName : name;
     }
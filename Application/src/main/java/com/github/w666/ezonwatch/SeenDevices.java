@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Watches seen by recent scans, kept so the scan screen can list them before the first
+ * advertisement arrives. Devices loaded from storage are cached until seen again. Not
+ * thread-safe.
+ */
+public class SeenDevices {
+    public static final int MAX_DEVICES = 10;
+    // Devices not seen for this long are forgotten.
+    public static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    public static final class Device {
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mSeenAt;
+        private boolean mLive;
+
+        private Device(String address, String name, int rssi, long seenAt, boolean live) {
+            mAddress = address;
+            mName = name;
+            mRssi = rssi;
+            mSeenAt = seenAt;
+            mLive = live;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return Signal strength of the last advertisement, dBm.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getSeenAt() {
+            return mSeenAt;
+        }
+
+        /**
+         * @return Whether the device was not seen by the current scan yet.
+         */
+        public boolean isCached() {
+            return !mLive;
+        }
+    }
+
+    // In the order first shown, so rows stay in place when refreshed.
+    private final ArrayList<Device> mDevices = new ArrayList<Device>();
+
+    /**
+     * @param value As written by {@link #toString()}, or null.
+     * @param now Devices seen before {@code now - MAX_AGE} are dropped.
+     */
+    public static SeenDevices parse(String value, long now) {
+        final SeenDevices devices = new SeenDevices();
+        if (value == null) {
+            return devices;
+        }
+        for (String line : value.split("\n")) {
+            // Name last, it may contain commas.
+            final String[] fields = line.split(",", 4);
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                final long seenAt = Long.parseLong(fields[2]);
+                if (now - seenAt <= MAX_AGE) {
+                    devices.mDevices.add(new Device(fields[0], fields[3],
+                            Integer.parseInt(fields[1]), seenAt, false));
+                }
+            } catch (NumberFormatException e) {
+                // Skips the entry.
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Records an advertisement, updating the device in place if it is listed.
+     */
+    public void onSeen(String name, String address, int rssi, long now) {
+        for (Device device : mDevices) {
+            if (device.mAddress.equals(address)) {
+                device.mName = name;
+                device.mRssi = rssi;
+                device.mSeenAt = now;
+                device.mLive = true;
+                return;
+            }
+        }
+        mDevices.add(new Device(address, name, rssi, now, true));
+    }
+
+    /**
+     * Marks all devices cached again, for a new scan.
+     */
+    public void markCached() {
+        for (Device device : mDevices) {
+            device.mLive = false;
+        }
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    public Device get(int index) {
+        return mDevices.get(index);
+    }
+
+    /**
+     * @return The {@link #MAX_DEVICES} most recently seen devices, one per line.
+     */
+    @Override
+    public String toString() {
+        final List<Device> devices = new ArrayList<Device>(mDevices);
+        Collections.sort(devices, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return Long.compare(b.mSeenAt, a.mSeenAt);
+            }
+        });
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Math.min(devices.size(), MAX_DEVICES); i++) {
+            final Device device = devices.get(i);
+            if (i > 0) {
+                builder.append('\n');
+            }
+            builder.append(device.mAddress).append(',').append(device.mRssi).append(',')
+                    .append(device.mSeenAt).append(',')
+                    .append(device.mName.replace('\n', ' '));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the traffic on the main characteristic of one watch, for {@link SessionReplayer}.
+ *
+ * <pre>
+ * "EZR1" | record*
+ * record: type (1 byte) | nanos since previous record (varint) | length (varint) | value
+ * </pre>
+ *
+ * Varints are unsigned LEB128, so a 20 byte notification usually takes 24 bytes.
+ */
+public class SessionRecorder {
+    public static final byte[] MAGIC = {'E', 'Z', 'R', '1'};
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_NOTIFICATION = 2;
+
+    private final OutputStream mOut;
+    private long mLastNanos = -1;
+
+    public SessionRecorder(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out);
+        mOut.write(MAGIC);
+    }
+
+    /**
+     * Records a value written to the watch.
+     *
+     * @param nanos Timestamp from {@code System.nanoTime()}.
+     */
+    public void recordWrite(long nanos, byte[] value) throws IOException {
+        record(TYPE_WRITE, nanos, value);
+    }
+
+    /**
+     * Records a notification received from the watch.
+     *
+     * @param nanos Timestamp from {@code System.nanoTime()}.
+     */
+    public void recordNotification(long nanos, byte[] value) throws IOException {
+        record(TYPE_NOTIFICATION, nanos, value);
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void record(int type, long nanos, byte[] value) throws IOException {
+        final long delta = mLastNanos < 0 ? 0 : Math.max(0, nanos - mLastNanos);
+        mLastNanos = nanos;
+        mOut.write(type);
+        writeVarint(delta);
+        if (value == null) {
+            writeVarint(0);
+        } else {
+            writeVarint(value.length);
+            mOut.write(value);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            mOut.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Plays a {@link SessionRecorder} recording back, either with its original timing or as fast
+ * as possible.
+ *
+ * Runs on a plain JVM; {@link #main(String[])} feeds a recording through {@link StepsPipeline}
+ * into a scratch history and prints what was stored and how fast:
+ *
+ * <pre>
+ * java com.github.w666.ezonwatch.SessionReplayer recording.ezr [--realtime] [--history dir]
+ * </pre>
+ */
+public class SessionReplayer {
+
+    public interface Sink {
+        void onWrite(long nanos, byte[] value);
+
+        void onNotification(long nanos, byte[] value);
+    }
+
+    private final InputStream mIn;
+
+    public SessionReplayer(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in);
+        final byte[] magic = new byte[SessionRecorder.MAGIC.length];
+        readFully(magic);
+        if (!Arrays.equals(magic, SessionRecorder.MAGIC)) {
+            throw new IOException("Not a session recording");
+        }
+    }
+
+    /**
+     * Delivers every record to {@code sink}, timestamps start at 0.
+     *
+     * @param realtime Keep the recorded spacing between records instead of replaying at full
+     *                 speed.
+     * @return The number of records replayed.
+     */
+    public int replay(Sink sink, boolean realtime) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        long nanos = 0;
+        int count = 0;
+        int type;
+        while ((type = mIn.read()) >= 0) {
+            nanos += readVarint();
+            final byte[] value = new byte[(int) readVarint()];
+            readFully(value);
+            if (realtime) {
+                final long wait = nanos - (System.nanoTime() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            if (type == SessionRecorder.TYPE_WRITE) {
+                sink.onWrite(nanos, value);
+            } else if (type == SessionRecorder.TYPE_NOTIFICATION) {
+                sink.onNotification(nanos, value);
+            } else {
+                throw new IOException("Unknown record type " + type);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Truncated recording");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = mIn.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException("Truncated recording");
+            }
+            offset += read;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: SessionReplayer <recording> [--realtime] [--history dir]");
+            System.exit(2);
+        }
+        boolean realtime = false;
+        File historyDir = null;
+        for (int i = 1; i < args.length; i++) {
+            if ("--realtime".equals(args[i])) {
+                realtime = true;
+            } else if ("--history".equals(args[i]) && i + 1 < args.length) {
+                historyDir = new File(args[++i]);
+            }
+        }
+        if (historyDir == null) {
+            historyDir = Files.createTempDirectory("ezon-replay").toFile();
+        }
+
+        final int[] counts = new int[3];
+        final StepsPipeline pipeline = new StepsPipeline(new StepsHistory(historyDir),
+                new StepsPipeline.Listener() {
+                    @Override
+                    public void onTransferStarted(LocalDate date) {
+                    }
+
+                    @Override
+                    public void onProgress(LocalDate date, int minutesReceived) {
+                    }
+
+                    @Override
+                    public void onStored(LocalDate date, byte[] minutes, int newSteps,
+                                         boolean changed, IOException error) {
+                        counts[2]++;
+                        System.out.println(date + ": " + StepsHistory.getStepsCount(minutes)
+                                + " steps" + (changed ? "" : ", unchanged")
+                                + (error != null ? " NOT STORED: " + error : ""));
+                    }
+                });
+        final long[] recorded = new long[1];
+        final SessionReplayer replayer = new SessionReplayer(new FileInputStream(args[0]));
+        final long start = System.nanoTime();
+        try {
+            replayer.replay(new Sink() {
+                @Override
+                public void onWrite(long nanos, byte[] value) {
+                    counts[0]++;
+                    recorded[0] = nanos;
+                    pipeline.onWrite(value);
+                }
+
+                @Override
+                public void onNotification(long nanos, byte[] value) {
+                    counts[1]++;
+                    recorded[0] = nanos;
+                    pipeline.onNotification(value);
+                }
+            }, realtime);
+        } finally {
+            replayer.close();
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(counts[0] + " writes, " + counts[1] + " notifications, "
+                + counts[2] + " days stored in " + historyDir);
+        System.out.printf("recorded %.3f ms, replayed %.3f ms, %.0f notifications/s%n",
+                recorded[0] / 1e6, elapsed / 1e6, counts[1] / (elapsed / 1e9));
+    }
+}
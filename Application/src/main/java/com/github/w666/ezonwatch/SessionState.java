@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Immutable snapshot of a {@link DeviceSession}.
+ *
+ * The session thread publishes a new snapshot after every state change, so any thread can
+ * read a consistent view without locking.
+ */
+public final class SessionState {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private final String mAddress;
+    private final int mConnectionState;
+    private final GattCharacteristicRegistry mCharacteristics;
+    private final boolean mTransferActive;
+    private final int mTransferProgress;
+
+    private SessionState(String address, int connectionState,
+                         GattCharacteristicRegistry characteristics, boolean transferActive,
+                         int transferProgress) {
+        mAddress = address;
+        mConnectionState = connectionState;
+        mCharacteristics = characteristics;
+        mTransferActive = transferActive;
+        mTransferProgress = transferProgress;
+    }
+
+    public static SessionState disconnected(String address) {
+        return new SessionState(address, STATE_DISCONNECTED, null, false, 0);
+    }
+
+    public SessionState withConnectionState(int connectionState) {
+        return new SessionState(mAddress, connectionState, mCharacteristics, mTransferActive,
+                mTransferProgress);
+    }
+
+    /**
+     * @param characteristics Discovered characteristics, or null if they have to be discovered
+     *                        again.
+     */
+    public SessionState withCharacteristics(GattCharacteristicRegistry characteristics) {
+        return new SessionState(mAddress, mConnectionState, characteristics, mTransferActive,
+                mTransferProgress);
+    }
+
+    public SessionState withTransfer(boolean active, int progress) {
+        return new SessionState(mAddress, mConnectionState, mCharacteristics, active, progress);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
+    }
+
+    public boolean isServicesDiscovered() {
+        return mCharacteristics != null;
+    }
+
+    /**
+     * @return Characteristics found by the last discovery, or null before discovery completed.
+     */
+    public GattCharacteristicRegistry getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    public boolean isTransferActive() {
+        return mTransferActive;
+    }
+
+    /**
+     * @return Minutes of the current steps file received so far.
+     */
+    public int getTransferProgress() {
+        return mTransferProgress;
+    }
+}
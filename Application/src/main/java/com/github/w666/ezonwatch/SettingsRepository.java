@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The app's settings, read from disk once per process and kept in memory.
+ *
+ * Reads are a lookup in an immutable snapshot and never touch disk. Changes go through a
+ * {@link Transaction}: all its keys become visible together, are written to disk in one
+ * {@code apply()} and reported to the listeners once.
+ */
+public class SettingsRepository {
+    private static final String PREFS_NAME = "EzonAppPrefs";
+    // Last configuration acknowledged by a watch, suffixed with the watch address.
+    private static final String WATCH_CONFIG = "watch_config_";
+
+    private static SettingsRepository sInstance;
+
+    public interface OnChangeListener {
+        /**
+         * Called on the committing thread after the keys changed.
+         */
+        void onSettingsChanged(SettingsRepository settings, Set<String> keys);
+    }
+
+    private final SharedPreferences mPreferences;
+    private final CopyOnWriteArrayList<OnChangeListener> mListeners =
+            new CopyOnWriteArrayList<OnChangeListener>();
+    private volatile Map<String, Object> mValues;
+
+    private SettingsRepository(SharedPreferences preferences) {
+        mPreferences = preferences;
+        mValues = Collections.unmodifiableMap(new HashMap<String, Object>(preferences.getAll()));
+    }
+
+    public static synchronized SettingsRepository get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SettingsRepository(
+                    context.getApplicationContext().getSharedPreferences(PREFS_NAME, 0));
+        }
+        return sInstance;
+    }
+
+    public String getString(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public int getInt(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+
+    public long getLong(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : 0;
+    }
+
+    /**
+     * @return The set, never null. Not to be modified.
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof Set ? (Set<String>) value : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return Configuration the watch with {@code address} last acknowledged, null if unknown.
+     */
+    public String getWatchConfig(String address) {
+        return getString(WATCH_CONFIG + address);
+    }
+
+    public void addListener(OnChangeListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    /**
+     * Changes to several keys that are committed together. Not thread-safe, use one per change.
+     */
+    public class Transaction {
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+
+        public Transaction putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Transaction putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Transaction putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Transaction putStringSet(String key, Set<String> value) {
+            mChanges.put(key, value == null ? null
+                    : Collections.unmodifiableSet(new HashSet<String>(value)));
+            return this;
+        }
+
+        /**
+         * Adds to the set as it is at commit time, so concurrent additions are not lost.
+         */
+        public Transaction addToStringSet(String key, String value) {
+            mChanges.put(key, new SetAddition(value));
+            return this;
+        }
+
+        public Transaction putWatchConfig(String address, String config) {
+            return putString(WATCH_CONFIG + address, config);
+        }
+
+        public Transaction remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        /**
+         * Makes the changes visible and writes them to disk in the background. Keys set to the
+         * value they already have are not written and not reported.
+         */
+        public void commit() {
+            final Set<String> changed = new HashSet<String>();
+            synchronized (SettingsRepository.this) {
+                final Map<String, Object> values = new HashMap<String, Object>(mValues);
+                final SharedPreferences.Editor editor = mPreferences.edit();
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    final String key = change.getKey();
+                    Object value = change.getValue();
+                    if (value instanceof SetAddition) {
+                        value = ((SetAddition) value).applyTo(values.get(key));
+                    }
+                    if (value == null ? !values.containsKey(key) : value.equals(values.get(key))) {
+                        continue;
+                    }
+                    changed.add(key);
+                    if (value == null) {
+                        values.remove(key);
+                        editor.remove(key);
+                    } else {
+                        values.put(key, value);
+                        put(editor, key, value);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return;
+                }
+                mValues = Collections.unmodifiableMap(values);
+                editor.apply();
+            }
+            final Set<String> keys = Collections.unmodifiableSet(changed);
+            for (OnChangeListener listener : mListeners) {
+                listener.onSettingsChanged(SettingsRepository.this, keys);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported value for " + key + ": " + value);
+        }
+    }
+
+    private static class SetAddition {
+        private final String mValue;
+
+        SetAddition(String value) {
+            mValue = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        Set<String> applyTo(Object current) {
+            final Set<String> set = current instanceof Set
+                    ? new HashSet<String>((Set<String>) current) : new HashSet<String>();
+            set.add(mValue);
+            return Collections.unmodifiableSet(set);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test of sync, storage and queries for many watches with years of data, on a plain JVM.
+ *
+ * Every virtual watch is a {@link WatchSimulator}. Its history is synced day by day through
+ * a {@link GattOperationQueue} and {@link StepsPipeline} into its own {@link StepsHistory},
+ * the way {@link DeviceSession} does it. Then today is synced again as it grows, with range
+ * queries and reads of old days in between. Files with lost frames and dropped connections
+ * are requested again, and every stored day is checked against the watch. Throughput,
+ * latency, heap and store size are printed every interval:
+ *
+ * <pre>
+ * java com.github.w666.ezonwatch.SoakHarness [--watches 16] [--years 2] [--rounds 32]
+ *         [--threads n] [--loss 0.0005] [--disconnect 0.02] [--seed 1] [--history dir]
+ *         [--interval 5] [--max-p99 100] [--min-throughput 50] [--max-heap-growth 64]
+ *         [--max-bytes-per-day 2048] [--max-failed 0]
+ * </pre>
+ *
+ * Exits with 1 if a threshold was crossed or a stored day differs from the watch.
+ */
+public class SoakHarness {
+    // Requests of one day before the sync counts as failed.
+    private static final int MAX_ATTEMPTS = 10;
+    private static final int QUERIES_PER_ROUND = 4;
+    // Today starts in the morning and grows by the rounds.
+    private static final int FIRST_TODAY_MINUTES = 8 * 60;
+    private static final double MB = 1024 * 1024;
+
+    private int mWatches = 16;
+    private int mYears = 2;
+    private int mRounds = 32;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private double mLoss = 0.0005;
+    private double mDisconnect = 0.02;
+    private long mSeed = 1;
+    private File mHistoryDir;
+    private int mInterval = 5;
+    private double mMaxP99 = 100;
+    private double mMinThroughput = 50;
+    private double mMaxHeapGrowth = 64;
+    private long mMaxBytesPerDay = 2048;
+    private long mMaxFailed = 0;
+
+    private final Histogram mSyncLatency = new Histogram();
+    private final Histogram mIntervalLatency = new Histogram();
+    private final Histogram mQueryLatency = new Histogram();
+    private final AtomicLong mSyncs = new AtomicLong();
+    private final AtomicLong mStoredDays = new AtomicLong();
+    private final AtomicLong mUnchanged = new AtomicLong();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mCorrupt = new AtomicLong();
+
+    /**
+     * Latencies in buckets 5% apart, so percentiles over a long run take constant memory.
+     * Thread-safe.
+     */
+    private static final class Histogram {
+        private static final double STEP = Math.log(1.05);
+
+        private final long[] mCounts = new long[512];
+        private long mCount;
+        private long mMax;
+
+        synchronized void add(long nanos) {
+            final long micros = Math.max(1, nanos / 1000);
+            mCounts[Math.min(mCounts.length - 1, (int) (Math.log(micros) / STEP))]++;
+            mCount++;
+            mMax = Math.max(mMax, micros);
+        }
+
+        /**
+         * @return Milliseconds under which {@code percent} of the latencies are, to 5%.
+         */
+        synchronized double getPercentile(int percent) {
+            final long rank = Math.max(1, (mCount * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length && mCount > 0; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(Math.exp((i + 1) * STEP), mMax) / 1000;
+                }
+            }
+            return 0;
+        }
+
+        synchronized double getMax() {
+            return mMax / 1000.0;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(mCounts, 0);
+            mCount = 0;
+            mMax = 0;
+        }
+    }
+
+    /**
+     * One watch with its history, synced by one thread at a time like a session on the GATT
+     * thread.
+     */
+    private class VirtualWatch implements Callable<Void> {
+        private final WatchSimulator mWatch;
+        private final StepsHistory mHistory;
+        private final StepsPipeline mPipeline;
+        private final GattOperationQueue mQueue = new GattOperationQueue();
+        private final Random mRandom;
+        private boolean mStored;
+        private boolean mChanged;
+
+        private final WatchSimulator.Link mLink = new WatchSimulator.Link() {
+            @Override
+            public void onNotification(byte[] value) {
+                mFrames.incrementAndGet();
+                mPipeline.onNotification(value);
+            }
+
+            @Override
+            public void onDisconnected() {
+                mDisconnects.incrementAndGet();
+                mQueue.clear();
+                mPipeline.cancel();
+            }
+        };
+
+        VirtualWatch(int number, File dir) {
+            final long seed = mSeed * 1000 + number;
+            mWatch = new WatchSimulator(seed, LocalDate.now().minusYears(mYears), mLoss,
+                    mDisconnect);
+            mRandom = new Random(seed);
+            mHistory = new StepsHistory(dir);
+            mPipeline = new StepsPipeline(mHistory, new StepsPipeline.Listener() {
+                @Override
+                public void onTransferStarted(LocalDate date) {
+                }
+
+                @Override
+                public void onProgress(LocalDate date, int minutesReceived) {
+                }
+
+                @Override
+                public void onStored(LocalDate date, byte[] minutes, int newSteps,
+                        boolean changed, IOException error) {
+                    if (error != null) {
+                        error.printStackTrace();
+                        return;
+                    }
+                    mStored = true;
+                    mChanged = changed;
+                }
+            });
+        }
+
+        @Override
+        public Void call() throws IOException {
+            final LocalDate today = LocalDate.now();
+            mWatch.setTodayMinutes(FIRST_TODAY_MINUTES);
+            for (LocalDate date = mWatch.getFirstDay(); !date.isAfter(today);
+                    date = date.plusDays(1)) {
+                if (sync(date)) {
+                    mStoredDays.incrementAndGet();
+                }
+            }
+            final int step = (StepsTransfer.MINUTES_PER_DAY - FIRST_TODAY_MINUTES) / mRounds;
+            for (int round = 1; round <= mRounds; round++) {
+                mWatch.setTodayMinutes(FIRST_TODAY_MINUTES + round * step);
+                sync(today);
+                for (int i = 0; i < QUERIES_PER_ROUND; i++) {
+                    query(today);
+                }
+            }
+            return null;
+        }
+
+        private boolean sync(LocalDate date) throws IOException {
+            final long start = System.nanoTime();
+            final byte[] request = StepsTransfer.buildRequest(date);
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    mRetries.incrementAndGet();
+                }
+                if (!mWatch.isConnected()) {
+                    mWatch.connect();
+                }
+                mStored = false;
+                mQueue.enqueue(new GattOperationQueue.Operation("steps " + date) {
+                    @Override
+                    public boolean execute() {
+                        mPipeline.onWrite(request);
+                        return mWatch.write(request);
+                    }
+                });
+                // The write is acknowledged, then the file streams in.
+                mQueue.onOperationComplete(true);
+                mWatch.deliver(mLink);
+                if (mStored) {
+                    final long latency = System.nanoTime() - start;
+                    mSyncLatency.add(latency);
+                    mIntervalLatency.add(latency);
+                    mSyncs.incrementAndGet();
+                    if (!mChanged) {
+                        mUnchanged.incrementAndGet();
+                    }
+                    verify(date);
+                    return true;
+                }
+                // Lost frames stalled the transfer, or the connection dropped and cancelled it.
+                mPipeline.cancel();
+            }
+            mFailed.incrementAndGet();
+            return false;
+        }
+
+        private void verify(LocalDate date) throws IOException {
+            final StepsDay day = mHistory.getDay(date);
+            if (day == null || !Arrays.equals(day.getMinutes(), mWatch.getDay(date))) {
+                System.err.println("Stored " + date + " differs from the watch");
+                mCorrupt.incrementAndGet();
+            }
+        }
+
+        // A range sum and a day that is most likely archived by now.
+        private void query(LocalDate today) throws IOException {
+            final int span = (int) (today.toEpochDay() - mWatch.getFirstDay().toEpochDay());
+            final LocalDate from = mWatch.getFirstDay().plusDays(mRandom.nextInt(span));
+            final LocalDate date = mWatch.getFirstDay().plusDays(mRandom.nextInt(span));
+            final long start = System.nanoTime();
+            final StepsIndex index = mHistory.getIndex();
+            index.sum(from, from.plusDays(mRandom.nextInt(366)));
+            final StepsDay day = mHistory.getDay(date);
+            mQueryLatency.add(System.nanoTime() - start);
+            if (day == null || day.getTotal() != index.get(date)) {
+                System.err.println("Index of " + date + " differs from the day");
+                mCorrupt.incrementAndGet();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long sizeOf(File file) {
+        final File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    /**
+     * @return Whether all thresholds held.
+     */
+    public boolean run() throws IOException, InterruptedException {
+        if (mHistoryDir == null) {
+            mHistoryDir = Files.createTempDirectory("ezon-soak").toFile();
+        }
+        System.out.println(mWatches + " watches, " + mYears + " years, " + mRounds
+                + " rounds of today, " + mThreads + " threads, loss " + mLoss
+                + ", disconnect " + mDisconnect + ", history in " + mHistoryDir);
+        System.out.println("    s   days/s  frames/s   p50 ms   p99 ms   max ms  query p99"
+                + "  heap MB  store MB  B/day");
+
+        final long heapBefore = usedHeap();
+        final ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < mWatches; i++) {
+            results.add(pool.submit(new VirtualWatch(i, new File(mHistoryDir, "watch" + i))));
+        }
+        pool.shutdown();
+
+        long lastTime = start;
+        long lastSyncs = 0;
+        long lastFrames = 0;
+        boolean done = false;
+        while (!done) {
+            done = pool.awaitTermination(mInterval, TimeUnit.SECONDS);
+            final long now = System.nanoTime();
+            final long syncs = mSyncs.get();
+            final long frames = mFrames.get();
+            final double seconds = (now - lastTime) / 1e9;
+            report(now - start, (syncs - lastSyncs) / seconds, (frames - lastFrames) / seconds);
+            lastTime = now;
+            lastSyncs = syncs;
+            lastFrames = frames;
+        }
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        boolean passed = true;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                passed = false;
+            }
+        }
+        final double throughput = mSyncs.get() / elapsed;
+        final double p99 = mSyncLatency.getPercentile(99);
+        final double heapGrowth = (usedHeap() - heapBefore) / MB;
+        final long bytesPerDay = sizeOf(mHistoryDir) / Math.max(1, mStoredDays.get());
+        System.out.printf("%d syncs (%d unchanged) of %d days in %.1f s, %.0f days/s%n",
+                mSyncs.get(), mUnchanged.get(), mStoredDays.get(), elapsed, throughput);
+        System.out.printf("sync p50 %.2f ms, p99 %.2f ms, max %.2f ms; query p99 %.2f ms%n",
+                mSyncLatency.getPercentile(50), p99, mSyncLatency.getMax(),
+                mQueryLatency.getPercentile(99));
+        System.out.printf("%d retries, %d disconnects, %d failed, %d corrupt; heap +%.1f MB,"
+                + " %d bytes per day%n", mRetries.get(), mDisconnects.get(), mFailed.get(),
+                mCorrupt.get(), heapGrowth, bytesPerDay);
+
+        passed &= check(p99 <= mMaxP99, "sync p99 %.2f ms over %.2f ms", p99, mMaxP99);
+        passed &= check(throughput >= mMinThroughput, "%.0f days/s under %.0f days/s",
+                throughput, mMinThroughput);
+        passed &= check(heapGrowth <= mMaxHeapGrowth, "heap grew %.1f MB, over %.1f MB",
+                heapGrowth, mMaxHeapGrowth);
+        passed &= check(bytesPerDay <= mMaxBytesPerDay, "%d bytes per day over %d",
+                bytesPerDay, mMaxBytesPerDay);
+        passed &= check(mFailed.get() <= mMaxFailed, "%d failed syncs over %d",
+                mFailed.get(), mMaxFailed);
+        passed &= check(mCorrupt.get() == 0, "%d stored days differ from the watch",
+                mCorrupt.get());
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private void report(long nanos, double daysPerSecond, double framesPerSecond) {
+        final long store = sizeOf(mHistoryDir);
+        System.out.printf("%5d %8.0f %9.0f %8.2f %8.2f %8.2f %10.2f %8.1f %9.1f %6d%n",
+                nanos / 1000000000L, daysPerSecond, framesPerSecond,
+                mIntervalLatency.getPercentile(50), mIntervalLatency.getPercentile(99),
+                mIntervalLatency.getMax(), mQueryLatency.getPercentile(99), usedHeap() / MB,
+                store / MB, store / Math.max(1, mStoredDays.get()));
+        mIntervalLatency.clear();
+    }
+
+    private static boolean check(boolean held, String format, Object... args) {
+        if (!held) {
+            System.out.println("FAIL: " + String.format(format, args));
+        }
+        return held;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SoakHarness harness = new SoakHarness();
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            final String value = args[++i];
+            switch (args[i - 1]) {
+                case "--watches":
+                    harness.mWatches = Integer.parseInt(value);
+                    break;
+                case "--years":
+                    harness.mYears = Integer.parseInt(value);
+                    break;
+                case "--rounds":
+                    harness.mRounds = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    harness.mThreads = Integer.parseInt(value);
+                    break;
+                case "--loss":
+                    harness.mLoss = Double.parseDouble(value);
+                    break;
+                case "--disconnect":
+                    harness.mDisconnect = Double.parseDouble(value);
+                    break;
+                case "--seed":
+                    harness.mSeed = Long.parseLong(value);
+                    break;
+                case "--history":
+                    harness.mHistoryDir = new File(value);
+                    break;
+                case "--interval":
+                    harness.mInterval = Integer.parseInt(value);
+                    break;
+                case "--max-p99":
+                    harness.mMaxP99 = Double.parseDouble(value);
+                    break;
+                case "--min-throughput":
+                    harness.mMinThroughput = Double.parseDouble(value);
+                    break;
+                case "--max-heap-growth":
+                    harness.mMaxHeapGrowth = Double.parseDouble(value);
+                    break;
+                case "--max-bytes-per-day":
+                    harness.mMaxBytesPerDay = Long.parseLong(value);
+                    break;
+                case "--max-failed":
+                    harness.mMaxFailed = Long.parseLong(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: SoakHarness [--watches n] [--years n] [--rounds n]"
+                + " [--threads n] [--loss p] [--disconnect p] [--seed n] [--history dir]"
+                + " [--interval s] [--max-p99 ms] [--min-throughput days/s]"
+                + " [--max-heap-growth MB] [--max-bytes-per-day n] [--max-failed n]");
+        System.exit(2);
+    }
+}
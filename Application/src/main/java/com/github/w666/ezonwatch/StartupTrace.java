@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs how long a launch takes to get the watch connected and the first steps back from it.
+ *
+ * <pre>
+ * adb logcat -s StartupTrace
+ * </pre>
+ */
+public final class StartupTrace {
+    private final static String TAG = StartupTrace.class.getSimpleName();
+
+    private static long sLaunch = -1;
+    private static boolean sConnected;
+    private static boolean sFirstData;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Starts a new trace, called when the launcher activity is created.
+     */
+    public static synchronized void launch() {
+        sLaunch = SystemClock.elapsedRealtime();
+        sConnected = false;
+        sFirstData = false;
+        Log.i(TAG, "launch, " + (sLaunch - Process.getStartElapsedRealtime())
+                + " ms after process start");
+    }
+
+    public static synchronized void connected() {
+        if (sLaunch < 0 || sConnected) {
+            return;
+        }
+        sConnected = true;
+        Log.i(TAG, "connected, " + (SystemClock.elapsedRealtime() - sLaunch) + " ms after launch");
+    }
+
+    /**
+     * Called when the first steps data of the watch arrived.
+     */
+    public static synchronized void firstData() {
+        if (sLaunch < 0 || sFirstData) {
+            return;
+        }
+        sFirstData = true;
+        Log.i(TAG, "first steps, " + (SystemClock.elapsedRealtime() - sLaunch)
+                + " ms after launch");
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.database.AbstractCursor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Rows of the recorded days in a range, at minute, hour or day resolution, computed when they
+ * are read rather than up front.
+ *
+ * A position maps to a recorded day through {@link StepsIndex#getRecordedDay(LocalDate, int)},
+ * and only the day under the cursor is held, so memory does not grow with the range. Across
+ * processes the framework copies rows into a window as the consumer moves.
+ */
+public class StepsCursor extends AbstractCursor {
+    private final static String TAG = StepsCursor.class.getSimpleName();
+
+    public static final int MINUTES = 0;
+    public static final int HOURS = 1;
+    public static final int DAYS = 2;
+
+    public static final String COLUMN_ID = "_id";
+    /** Start of the row, epoch milliseconds in the local time zone. */
+    public static final String COLUMN_TIME = "time";
+    /** Day of the row, ISO format. */
+    public static final String COLUMN_DATE = "date";
+    public static final String COLUMN_STEPS = "steps";
+
+    public static final String[] COLUMNS = {
+            COLUMN_ID, COLUMN_TIME, COLUMN_DATE, COLUMN_STEPS
+    };
+
+    private static final int ID = 0;
+    private static final int TIME = 1;
+    private static final int DATE = 2;
+    private static final int STEPS = 3;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final long MINUTE = 60 * 1000;
+
+    private final StepsHistory mHistory;
+    private final StepsIndex mIndex;
+    private final LocalDate mFrom;
+    private final int mResolution;
+    private final int mRowsPerDay;
+    private final String[] mColumnNames;
+    // Positions in COLUMNS of the requested columns.
+    private final int[] mColumns;
+    private final int mCount;
+    private final ZoneId mZone = ZoneId.systemDefault();
+
+    // The day under the cursor.
+    private int mDayPosition = -1;
+    private LocalDate mDate;
+    private StepsDay mDay;
+
+    /**
+     * @param from First day, inclusive.
+     * @param to Last day, inclusive.
+     * @param projection Columns out of {@link #COLUMNS}, null for all.
+     * @throws IllegalArgumentException For an unknown column.
+     */
+    public StepsCursor(StepsHistory history, LocalDate from, LocalDate to, int resolution,
+            String[] projection) throws IOException {
+        mHistory = history;
+        mIndex = history.getIndex();
+        mFrom = from;
+        mResolution = resolution;
+        mRowsPerDay = resolution == MINUTES ? MINUTES_PER_DAY
+                : resolution == HOURS ? StepsDay.HOURS : 1;
+        mColumnNames = projection != null ? projection.clone() : COLUMNS.clone();
+        mColumns = new int[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumns[i] = columnOf(mColumnNames[i]);
+        }
+        mCount = from.isAfter(to) ? 0 : mIndex.count(from, to) * mRowsPerDay;
+    }
+
+    private static int columnOf(String name) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    // Moves to the day of the current row. False if it is gone since the count was taken.
+    private boolean moveToDay() {
+        final int dayPosition = getPosition() / mRowsPerDay;
+        if (dayPosition != mDayPosition) {
+            mDayPosition = dayPosition;
+            mDate = mIndex.getRecordedDay(mFrom, dayPosition);
+            mDay = null;
+        }
+        return mDate != null;
+    }
+
+    // Minutes and hours need the day itself, day totals come from the index.
+    private StepsDay getDay() {
+        if (mDay == null && mDate != null) {
+            // Straight from disk when not cached, a long scan should not evict the days
+            // the app is showing.
+            mDay = mHistory.getCache().get(mDate);
+            if (mDay == null) {
+                try {
+                    final byte[] minutes = mHistory.read(mDate);
+                    if (minutes != null) {
+                        mDay = new StepsDay(mDate, minutes);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read " + mDate, e);
+                }
+            }
+        }
+        return mDay;
+    }
+
+    private int getSlot() {
+        return getPosition() % mRowsPerDay;
+    }
+
+    private long getValue(int column) {
+        switch (mColumns[column]) {
+            case ID:
+                return getPosition();
+            case TIME:
+                final long start = mDate.atStartOfDay(mZone).toInstant().toEpochMilli();
+                return start + getSlot() * (mResolution == HOURS ? 60 * MINUTE : MINUTE);
+            case STEPS:
+                if (mResolution == DAYS) {
+                    return mIndex.get(mDate);
+                }
+                final StepsDay day = getDay();
+                if (day == null) {
+                    return 0;
+                }
+                if (mResolution == HOURS) {
+                    return day.getHour(getSlot());
+                }
+                return getSlot() < day.getMinuteCount() ? day.getMinute(getSlot()) : 0;
+            default:
+                return mDate.toEpochDay();
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        return mColumns[column] == DATE ? mDate.toString() : Long.toString(getValue(column));
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return isNull(column) ? 0 : getValue(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        if (isNull(column)) {
+            return FIELD_TYPE_NULL;
+        }
+        return mColumns[column] == DATE ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return !moveToDay();
+    }
+}
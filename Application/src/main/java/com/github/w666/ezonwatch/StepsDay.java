@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.LocalDate;
+
+/**
+ * A stored day with its totals worked out once. Immutable, shared through {@link DayCache}.
+ */
+public final class StepsDay {
+    public static final int HOURS = 24;
+    private static final int MINUTES_PER_HOUR = 60;
+
+    private final LocalDate mDate;
+    private final byte[] mMinutes;
+    private final int mTotal;
+    private final int[] mHourly;
+
+    public StepsDay(LocalDate date, byte[] minutes) {
+        mDate = date;
+        mMinutes = minutes.clone();
+        mHourly = new int[HOURS];
+        int total = 0;
+        for (int i = 0; i < mMinutes.length; i++) {
+            final int steps = mMinutes[i] & 0xff;
+            if (i / MINUTES_PER_HOUR < HOURS) {
+                mHourly[i / MINUTES_PER_HOUR] += steps;
+            }
+            total += steps;
+        }
+        mTotal = total;
+    }
+
+    public LocalDate getDate() {
+        return mDate;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return Steps in the given hour of the day.
+     */
+    public int getHour(int hour) {
+        return mHourly[hour];
+    }
+
+    public int getMinuteCount() {
+        return mMinutes.length;
+    }
+
+    /**
+     * @return Steps in the given minute of the day, unsigned.
+     */
+    public int getMinute(int minute) {
+        return mMinutes[minute] & 0xff;
+    }
+
+    /**
+     * @return A copy of the minutes.
+     */
+    public byte[] getMinutes() {
+        return mMinutes.clone();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Streams a {@link StepsHistory} out as CSV or JSON lines.
+ *
+ * One day is read at a time and rows are encoded straight into a fixed buffer that is
+ * flushed to the channel, so memory use does not depend on how much history is exported.
+ *
+ * <pre>
+ * CSV:        time,steps
+ *             2016-11-11T08:30,42
+ * JSON lines: {"time":"2016-11-11T08:30","steps":42}
+ * </pre>
+ *
+ * Days are written as {@code 2016-11-11} and hours as {@code 2016-11-11T08:00}.
+ */
+public class StepsExporter {
+    public enum Format {CSV, JSON_LINES}
+
+    public enum Resolution {
+        MINUTE(1), HOUR(60), DAY(StepsTransfer.MINUTES_PER_DAY);
+
+        final int mMinutes;
+
+        Resolution(int minutes) {
+            mMinutes = minutes;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Longest row is a JSON minute row with a 7 digit count.
+    private static final int MAX_ROW = 64;
+
+    private final StepsHistory mStepsHistory;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public StepsExporter(StepsHistory history) {
+        mStepsHistory = history;
+    }
+
+    /**
+     * Writes the stored days from {@code from} to {@code to}, both inclusive. Days that were
+     * never downloaded are skipped. The channel is not closed.
+     *
+     * @return The number of rows written, without the CSV header.
+     */
+    public synchronized long export(LocalDate from, LocalDate to, Format format,
+                                    Resolution resolution, WritableByteChannel channel)
+            throws IOException {
+        mBuffer.clear();
+        if (format == Format.CSV) {
+            putAscii(resolution == Resolution.DAY ? "date,steps\n" : "time,steps\n");
+        }
+        long rows = 0;
+        final List<LocalDate> days = mStepsHistory.getDays();
+        for (LocalDate date : days) {
+            if (date.isBefore(from) || date.isAfter(to)) {
+                continue;
+            }
+            final byte[] minutes = mStepsHistory.read(date);
+            if (minutes == null) {
+                continue;
+            }
+            final String day = date.toString();
+            for (int start = 0; start < minutes.length; start += resolution.mMinutes) {
+                final int end = Math.min(minutes.length, start + resolution.mMinutes);
+                int steps = 0;
+                for (int i = start; i < end; i++) {
+                    steps += minutes[i] & 0xff;
+                }
+                if (mBuffer.remaining() < MAX_ROW) {
+                    flush(channel);
+                }
+                writeRow(format, resolution, day, start, steps);
+                rows++;
+            }
+        }
+        flush(channel);
+        return rows;
+    }
+
+    private void writeRow(Format format, Resolution resolution, String day, int minute,
+                          int steps) {
+        if (format == Format.JSON_LINES) {
+            putAscii("{\"time\":\"");
+        }
+        putAscii(day);
+        if (resolution != Resolution.DAY) {
+            mBuffer.put((byte) 'T');
+            putTwoDigits(minute / 60);
+            mBuffer.put((byte) ':');
+            putTwoDigits(minute % 60);
+        }
+        if (format == Format.JSON_LINES) {
+            putAscii("\",\"steps\":");
+            putInt(steps);
+            putAscii("}\n");
+        } else {
+            mBuffer.put((byte) ',');
+            putInt(steps);
+            mBuffer.put((byte) '\n');
+        }
+    }
+
+    private void putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            mBuffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void putTwoDigits(int value) {
+        mBuffer.put((byte) ('0' + value / 10));
+        mBuffer.put((byte) ('0' + value % 10));
+    }
+
+    private void putInt(int value) {
+        if (value >= 10) {
+            putInt(value / 10);
+        }
+        mBuffer.put((byte) ('0' + value % 10));
+    }
+
+    private void flush(WritableByteChannel channel) throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Stores downloaded steps files, one file of per-minute step counts per day.
+ *
+ * Recent days, which may still be downloaded again, are kept as plain files. Older days are
+ * moved into one {@link DayArchive} per month, encoded with {@link DayCodec}.
+ */
+public class StepsHistory {
+    // Days younger than this stay uncompressed.
+    public static final int DEFAULT_HOT_DAYS = 7;
+    // Decoded days kept in memory, a couple of months of browsing back and forth.
+    public static final int CACHED_DAYS = 64;
+
+    private static final DateTimeFormatter FILE_NAME = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final DateTimeFormatter ARCHIVE_NAME = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final String SUFFIX = ".steps";
+    private static final String ARCHIVE_SUFFIX = ".days";
+    private static final String INDEX_FILE = "index";
+
+    private final File mDir;
+    private final int mHotDays;
+    private final DayCache mCache = new DayCache(CACHED_DAYS);
+    private StepsIndex mIndex;
+
+    public StepsHistory(File dir) {
+        this(dir, DEFAULT_HOT_DAYS);
+    }
+
+    /**
+     * @param hotDays Days younger than this are kept uncompressed, {@code Integer.MAX_VALUE}
+     *                keeps every day uncompressed.
+     */
+    public StepsHistory(File dir, int hotDays) {
+        mDir = dir;
+        mHotDays = hotDays;
+    }
+
+    /**
+     * Replaces the stored minutes of a day. The file is swapped in atomically so readers never
+     * see a partially written day.
+     */
+    public synchronized void commit(LocalDate date, byte[] minutes) throws IOException {
+        Tracer.begin("commit " + date);
+        try {
+            commitTraced(date, minutes);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    private void commitTraced(LocalDate date, byte[] minutes) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        final File file = fileOf(date);
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(minutes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        mCache.onCommit(date, new StepsDay(date, minutes));
+        getIndex().put(date, getStepsCount(minutes));
+        writeIndex();
+        try {
+            compact();
+        } catch (IOException e) {
+            // The day is stored either way, try again with the next commit.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Moves plain day files older than the hot days into the monthly archives.
+     */
+    public synchronized void compact() throws IOException {
+        if (mHotDays == Integer.MAX_VALUE) {
+            return;
+        }
+        final LocalDate hot = LocalDate.now().minusDays(mHotDays);
+        final Map<YearMonth, List<LocalDate>> cold = new HashMap<YearMonth, List<LocalDate>>();
+        for (LocalDate date : getPlainDays()) {
+            if (date.isBefore(hot)) {
+                final YearMonth month = YearMonth.from(date);
+                if (!cold.containsKey(month)) {
+                    cold.put(month, new ArrayList<LocalDate>());
+                }
+                cold.get(month).add(date);
+            }
+        }
+        for (Map.Entry<YearMonth, List<LocalDate>> entry : cold.entrySet()) {
+            final File file = archiveOf(entry.getKey());
+            final DayArchive archive = DayArchive.read(file);
+            for (LocalDate date : entry.getValue()) {
+                archive.put(date.getDayOfMonth(), readPlain(fileOf(date)), getLastModified(date));
+            }
+            archive.write(file);
+            // Readers that miss a file deleted here find the day in the archive.
+            for (LocalDate date : entry.getValue()) {
+                fileOf(date).delete();
+            }
+        }
+    }
+
+    /**
+     * @return Daily totals for range queries, loaded from disk or rebuilt from the day files
+     * on first use and kept up to date by {@link #commit(LocalDate, byte[])}. Reading never
+     * writes, a rebuilt index is stored with the next commit.
+     */
+    public synchronized StepsIndex getIndex() throws IOException {
+        if (mIndex == null) {
+            mIndex = readIndex();
+        }
+        if (mIndex == null) {
+            mIndex = new StepsIndex();
+            for (LocalDate date : getDays()) {
+                mIndex.put(date, getStepsCount(read(date)));
+            }
+        }
+        return mIndex;
+    }
+
+    /**
+     * @return All stored days, oldest first.
+     */
+    public synchronized List<LocalDate> getDays() throws IOException {
+        final TreeSet<LocalDate> days = new TreeSet<LocalDate>(getPlainDays());
+        final String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(ARCHIVE_SUFFIX)) {
+                    continue;
+                }
+                final YearMonth month;
+                try {
+                    month = YearMonth.parse(
+                            name.substring(0, name.length() - ARCHIVE_SUFFIX.length()), ARCHIVE_NAME);
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                final long[] modified = DayArchive.readModified(new File(mDir, name));
+                for (int day = 1; day <= month.lengthOfMonth(); day++) {
+                    if (modified[day - 1] != 0) {
+                        days.add(month.atDay(day));
+                    }
+                }
+            }
+        }
+        return new ArrayList<LocalDate>(days);
+    }
+
+    private List<LocalDate> getPlainDays() {
+        final List<LocalDate> days = new ArrayList<LocalDate>();
+        final String[] names = mDir.list();
+        if (names == null) {
+            return days;
+        }
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                days.add(LocalDate.parse(name.substring(0, name.length() - SUFFIX.length()), FILE_NAME));
+            } catch (DateTimeParseException e) {
+                // Not one of ours.
+            }
+        }
+        return days;
+    }
+
+    // Returns null if there is no index yet or it is older than a day file, e.g. after a crash
+    // between committing a day and writing the index.
+    private StepsIndex readIndex() {
+        final File file = new File(mDir, INDEX_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        final File[] days = mDir.listFiles();
+        if (days != null) {
+            for (File day : days) {
+                if (day.getName().endsWith(SUFFIX) && day.lastModified() > file.lastModified()) {
+                    return null;
+                }
+            }
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return StepsIndex.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        final File file = new File(mDir, INDEX_FILE);
+        final File tmp = new File(mDir, INDEX_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            mIndex.write(data);
+            data.flush();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * @return The day with its totals, from memory if it was used recently, or null if the
+     * day was never downloaded.
+     */
+    public StepsDay getDay(LocalDate date) throws IOException {
+        StepsDay day = mCache.get(date);
+        if (day != null) {
+            return day;
+        }
+        final long version = mCache.getVersion(date);
+        final byte[] minutes = read(date);
+        if (minutes == null) {
+            return null;
+        }
+        day = new StepsDay(date, minutes);
+        mCache.put(day, version);
+        return day;
+    }
+
+    public DayCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return The stored minutes of a day, or null if the day was never downloaded.
+     */
+    // Not synchronized so days can be read in parallel; commit swaps files atomically.
+    public byte[] read(LocalDate date) throws IOException {
+        final File file = fileOf(date);
+        if (file.isFile()) {
+            try {
+                return readPlain(file);
+            } catch (FileNotFoundException e) {
+                // Just moved into the archive.
+            }
+        }
+        return DayArchive.readDay(archiveOf(YearMonth.from(date)), date.getDayOfMonth());
+    }
+
+    private static byte[] readPlain(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        final byte[] minutes;
+        try {
+            // Size of what was opened, the path may already point elsewhere.
+            minutes = new byte[(int) in.getChannel().size()];
+            int offset = 0;
+            while (offset < minutes.length) {
+                int read = in.read(minutes, offset, minutes.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return minutes;
+    }
+
+    /**
+     * @return When the day was last stored, 0 if it is not stored.
+     */
+    public long getLastModified(LocalDate date) {
+        final long modified = fileOf(date).lastModified();
+        if (modified != 0) {
+            return modified;
+        }
+        try {
+            return DayArchive.readModified(archiveOf(YearMonth.from(date)))[date.getDayOfMonth() - 1];
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    public static int getStepsCount(byte[] minutes) {
+        int stepsCount = 0;
+        if (minutes == null) {
+            return stepsCount;
+        }
+        for (int i = 0; i < minutes.length; i++) {
+            stepsCount += minutes[i] & 0xff;
+        }
+        return stepsCount;
+    }
+
+    private File fileOf(LocalDate date) {
+        return new File(mDir, date.format(FILE_NAME) + SUFFIX);
+    }
+
+    private File archiveOf(YearMonth month) {
+        return new File(mDir, month.format(ARCHIVE_NAME) + ARCHIVE_SUFFIX);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+
+/**
+ * Daily step totals of a {@link StepsHistory}, indexed for range queries.
+ *
+ * Totals are kept in Fenwick trees over consecutive days, plus one tree per day of the week, so
+ * the sum, the number of recorded days and the average of any date range take O(log n) and a
+ * year costs the same as a day. Weeks, months and years are just ranges. Committing a day
+ * updates the trees in place.
+ */
+public class StepsIndex {
+    private static final int MISSING = -1;
+    private static final int MIN_CAPACITY = 64;
+    private static final int VERSION = 1;
+
+    // Epoch day of offset 0.
+    private long mBase;
+    // Total per day, MISSING for days that were never downloaded.
+    private int[] mDays = new int[0];
+    private Fenwick mSums;
+    private Fenwick mCounts;
+    // Per day of week, indexed by offset / 7.
+    private final Fenwick[] mWeekdaySums = new Fenwick[7];
+    private final Fenwick[] mWeekdayCounts = new Fenwick[7];
+
+    public StepsIndex() {
+        rebuild();
+    }
+
+    /**
+     * Sets the total of a day, replacing a previous one.
+     */
+    public synchronized void put(LocalDate date, int steps) {
+        ensureRange(date.toEpochDay());
+        final int offset = (int) (date.toEpochDay() - mBase);
+        final int old = mDays[offset];
+        mDays[offset] = steps;
+        final long delta = (long) steps - (old == MISSING ? 0 : old);
+        final int count = old == MISSING ? 1 : 0;
+        final int weekday = weekdayOf(offset);
+        mSums.add(offset, delta);
+        mCounts.add(offset, count);
+        mWeekdaySums[weekday].add(offset / 7, delta);
+        mWeekdayCounts[weekday].add(offset / 7, count);
+    }
+
+    /**
+     * @return The total of a day, or -1 if the day is not recorded.
+     */
+    public synchronized int get(LocalDate date) {
+        final long offset = date.toEpochDay() - mBase;
+        return offset < 0 || offset >= mDays.length ? MISSING : mDays[(int) offset];
+    }
+
+    /**
+     * @return Steps between {@code from} and {@code to}, both inclusive.
+     */
+    public synchronized long sum(LocalDate from, LocalDate to) {
+        return rangeOf(mSums, from, to);
+    }
+
+    /**
+     * @return Number of recorded days between {@code from} and {@code to}, both inclusive.
+     */
+    public synchronized int count(LocalDate from, LocalDate to) {
+        return (int) rangeOf(mCounts, from, to);
+    }
+
+    /**
+     * @return Average steps per recorded day in the range, 0 if none is recorded.
+     */
+    public synchronized double average(LocalDate from, LocalDate to) {
+        final long count = rangeOf(mCounts, from, to);
+        return count == 0 ? 0 : (double) rangeOf(mSums, from, to) / count;
+    }
+
+    /**
+     * @return Average steps of the recorded {@code dayOfWeek}s in the range, 0 if none.
+     */
+    public synchronized double average(LocalDate from, LocalDate to, DayOfWeek dayOfWeek) {
+        final int weekday = dayOfWeek.getValue() - 1;
+        final long count = weekdayRangeOf(mWeekdayCounts[weekday], from, to, weekday);
+        return count == 0 ? 0
+                : (double) weekdayRangeOf(mWeekdaySums[weekday], from, to, weekday) / count;
+    }
+
+    /**
+     * @return Steps of the Monday to Sunday week containing {@code date}.
+     */
+    public long getWeek(LocalDate date) {
+        final LocalDate monday = date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        return sum(monday, monday.plusDays(6));
+    }
+
+    public long getMonth(YearMonth month) {
+        return sum(month.atDay(1), month.atEndOfMonth());
+    }
+
+    public long getYear(int year) {
+        return sum(LocalDate.of(year, 1, 1), LocalDate.of(year, 12, 31));
+    }
+
+    /**
+     * @return The first recorded day, or null if nothing is recorded.
+     */
+    public synchronized LocalDate getFirstDay() {
+        for (int i = 0; i < mDays.length; i++) {
+            if (mDays[i] != MISSING) {
+                return LocalDate.ofEpochDay(mBase + i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The {@code k}-th recorded day from {@code from} on, counting from 0, or null if
+     *         fewer days are recorded. O(log n), so recorded days can be addressed by position.
+     */
+    public synchronized LocalDate getRecordedDay(LocalDate from, int k) {
+        final long first = Math.max(0, from.toEpochDay() - mBase);
+        if (first >= mDays.length) {
+            return null;
+        }
+        final long before = first == 0 ? 0 : mCounts.prefix((int) first - 1);
+        final int offset = mCounts.find(before + k + 1);
+        return offset < 0 ? null : LocalDate.ofEpochDay(mBase + offset);
+    }
+
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(mBase);
+        out.writeInt(mDays.length);
+        for (int steps : mDays) {
+            out.writeInt(steps);
+        }
+    }
+
+    public static StepsIndex read(DataInput in) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unknown index version");
+        }
+        final StepsIndex index = new StepsIndex();
+        index.mBase = in.readLong();
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt index");
+        }
+        index.mDays = new int[length];
+        for (int i = 0; i < length; i++) {
+            index.mDays[i] = in.readInt();
+        }
+        index.rebuild();
+        return index;
+    }
+
+    private long rangeOf(Fenwick tree, LocalDate from, LocalDate to) {
+        final long first = Math.max(0, from.toEpochDay() - mBase);
+        final long last = Math.min(mDays.length - 1, to.toEpochDay() - mBase);
+        if (first > last) {
+            return 0;
+        }
+        return tree.prefix((int) last) - (first == 0 ? 0 : tree.prefix((int) first - 1));
+    }
+
+    private long weekdayRangeOf(Fenwick tree, LocalDate from, LocalDate to, int weekday) {
+        long first = Math.max(0, from.toEpochDay() - mBase);
+        long last = Math.min(mDays.length - 1, to.toEpochDay() - mBase);
+        // Offsets of that weekday are k, k + 7, k + 14, ...
+        final int k = Math.floorMod(weekday - weekdayOf(0), 7);
+        first += Math.floorMod(k - first, 7);
+        last -= Math.floorMod(last - k, 7);
+        if (first > last) {
+            return 0;
+        }
+        final int firstSlot = (int) (first / 7);
+        final int lastSlot = (int) (last / 7);
+        return tree.prefix(lastSlot) - (firstSlot == 0 ? 0 : tree.prefix(firstSlot - 1));
+    }
+
+    // 0 for Monday.
+    private int weekdayOf(int offset) {
+        // 1970-01-01 was a Thursday.
+        return (int) Math.floorMod(mBase + offset + 3, 7L);
+    }
+
+    // Grows the covered range to include epochDay, rebuilding the trees in O(n) if needed.
+    private void ensureRange(long epochDay) {
+        if (mDays.length == 0) {
+            mBase = epochDay;
+        }
+        final long first = Math.min(mBase, epochDay);
+        final long last = Math.max(mBase + mDays.length - 1, epochDay);
+        if (first == mBase && last < mBase + mDays.length) {
+            return;
+        }
+        // Leave room on the side that grew, syncs mostly add the next day.
+        final int length = (int) Math.max(MIN_CAPACITY, (last - first + 1) * 2);
+        final long base = first < mBase ? last - length + 1 : first;
+        final int[] days = new int[length];
+        Arrays.fill(days, MISSING);
+        System.arraycopy(mDays, 0, days, (int) (mBase - base), mDays.length);
+        mBase = base;
+        mDays = days;
+        rebuild();
+    }
+
+    private void rebuild() {
+        final long[] sums = new long[mDays.length];
+        final long[] counts = new long[mDays.length];
+        final int slots = (mDays.length + 6) / 7;
+        final long[][] weekdaySums = new long[7][slots];
+        final long[][] weekdayCounts = new long[7][slots];
+        for (int i = 0; i < mDays.length; i++) {
+            if (mDays[i] == MISSING) {
+                continue;
+            }
+            sums[i] = mDays[i];
+            counts[i] = 1;
+            weekdaySums[weekdayOf(i)][i / 7] = mDays[i];
+            weekdayCounts[weekdayOf(i)][i / 7] = 1;
+        }
+        mSums = new Fenwick(sums);
+        mCounts = new Fenwick(counts);
+        for (int w = 0; w < 7; w++) {
+            mWeekdaySums[w] = new Fenwick(weekdaySums[w]);
+            mWeekdayCounts[w] = new Fenwick(weekdayCounts[w]);
+        }
+    }
+
+    private static final class Fenwick {
+        private final long[] mTree;
+
+        // Builds the tree from plain values in O(n).
+        Fenwick(long[] values) {
+            mTree = new long[values.length + 1];
+            System.arraycopy(values, 0, mTree, 1, values.length);
+            for (int i = 1; i < mTree.length; i++) {
+                final int parent = i + (i & -i);
+                if (parent < mTree.length) {
+                    mTree[parent] += mTree[i];
+                }
+            }
+        }
+
+        void add(int index, long delta) {
+            for (int i = index + 1; i < mTree.length; i += i & -i) {
+                mTree[i] += delta;
+            }
+        }
+
+        // Smallest index whose prefix reaches target, -1 if none. Values must not be negative.
+        int find(long target) {
+            final int size = mTree.length - 1;
+            int position = 0;
+            for (int step = Integer.highestOneBit(Math.max(1, size)); step > 0; step >>= 1) {
+                if (position + step <= size && mTree[position + step] < target) {
+                    position += step;
+                    target -= mTree[position];
+                }
+            }
+            return position < size ? position : -1;
+        }
+
+        // Sum of values 0..index.
+        long prefix(int index) {
+            long sum = 0;
+            for (int i = index + 1; i > 0; i -= i & -i) {
+                sum += mTree[i];
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.IOException;
+import java.time.LocalDate;
+
+/**
+ * Turns the traffic on the main Ezon characteristic into stored days.
+ *
+ * Outbound writes and inbound notifications of one watch are fed in the order they happened;
+ * a steps request starts a {@link StepsTransfer} and the completed file is committed to the
+ * watch's {@link StepsHistory}. Plain Java, so recorded sessions can be replayed through the
+ * same code on a JVM.
+ */
+public class StepsPipeline {
+
+    public interface Listener {
+        void onTransferStarted(LocalDate date);
+
+        void onProgress(LocalDate date, int minutesReceived);
+
+        /**
+         * @param newSteps Steps that were not stored for that day before, 0 if it failed.
+         * @param changed Whether the day differed from the stored one, if not nothing was
+         *                written.
+         * @param error Set if the day could not be stored.
+         */
+        void onStored(LocalDate date, byte[] minutes, int newSteps, boolean changed,
+                IOException error);
+    }
+
+    private final StepsHistory mStepsHistory;
+    private final Listener mListener;
+    private final StepsTransfer mStepsTransfer;
+
+    public StepsPipeline(StepsHistory history, Listener listener) {
+        mStepsHistory = history;
+        mListener = listener;
+        mStepsTransfer = new StepsTransfer(new StepsTransfer.Listener() {
+            @Override
+            public void onProgress(LocalDate date, int minutesReceived) {
+                mListener.onProgress(date, minutesReceived);
+            }
+
+            @Override
+            public void onComplete(LocalDate date, byte[] minutes, int changedFrames) {
+                commit(date, minutes, changedFrames);
+            }
+        });
+    }
+
+    public StepsHistory getStepsHistory() {
+        return mStepsHistory;
+    }
+
+    public boolean isActive() {
+        return mStepsTransfer.isActive();
+    }
+
+    /**
+     * @return Day being transferred, null if none.
+     */
+    public LocalDate getDate() {
+        return mStepsTransfer.getDate();
+    }
+
+    public int getMinutesReceived() {
+        return mStepsTransfer.getMinutesReceived();
+    }
+
+    /**
+     * Drops a partially received file, e.g. after the connection was lost.
+     */
+    public void cancel() {
+        mStepsTransfer.cancel();
+    }
+
+    /**
+     * Feeds a value about to be written to the main characteristic.
+     */
+    public void onWrite(byte[] value) {
+        final LocalDate date = StepsTransfer.parseRequest(value);
+        if (date != null) {
+            mStepsTransfer.start(date, readStored(date));
+            mListener.onTransferStarted(date);
+        }
+    }
+
+    /**
+     * Feeds a notification received from the main characteristic.
+     *
+     * @return true if the frame was part of a steps file.
+     */
+    public boolean onNotification(byte[] value) {
+        return mStepsTransfer.onFrame(value);
+    }
+
+    // The stored day to compare a re-sync with, usually today and in the day cache.
+    private byte[] readStored(LocalDate date) {
+        try {
+            final StepsDay day = mStepsHistory.getDay(date);
+            return day != null ? day.getMinutes() : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void commit(LocalDate date, byte[] minutes, int changedFrames) {
+        if (changedFrames == 0) {
+            mListener.onStored(date, minutes, 0, false, null);
+            return;
+        }
+        int newSteps = StepsHistory.getStepsCount(minutes);
+        IOException error = null;
+        try {
+            final StepsDay stored = mStepsHistory.getDay(date);
+            newSteps -= stored != null ? stored.getTotal() : 0;
+            mStepsHistory.commit(date, minutes);
+        } catch (IOException e) {
+            error = e;
+            newSteps = 0;
+        }
+        mListener.onStored(date, minutes, Math.max(0, newSteps), true, error);
+    }
+}
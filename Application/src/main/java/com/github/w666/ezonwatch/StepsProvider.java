@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Read-only access to the stored steps for other apps, e.g. health aggregators, once the user
+ * granted them the {@code com.github.w666.ezonwatch.permission.READ_STEPS} permission.
+ *
+ * <pre>
+ * content://com.github.w666.ezonwatch.steps/minutes?from=2016-11-01&amp;to=2016-11-30
+ * </pre>
+ *
+ * Paths {@code minutes}, {@code hours} and {@code days} pick the resolution. {@code from} and
+ * {@code to} are inclusive ISO dates, by default the whole history; {@code address} picks the
+ * watch, by default the current one. Only recorded days have rows, oldest first. Columns are
+ * those of {@link StepsCursor}; selection and sort order are not supported. Cursors are
+ * notified when a sync stores a day.
+ */
+public class StepsProvider extends ContentProvider {
+    private final static String TAG = StepsProvider.class.getSimpleName();
+
+    public static final String AUTHORITY = "com.github.w666.ezonwatch.steps";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    public static final Uri MINUTES_URI = Uri.withAppendedPath(CONTENT_URI, "minutes");
+    public static final Uri HOURS_URI = Uri.withAppendedPath(CONTENT_URI, "hours");
+    public static final Uri DAYS_URI = Uri.withAppendedPath(CONTENT_URI, "days");
+
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+    public static final String PARAM_ADDRESS = "address";
+
+    private static final String TYPE = "vnd.android.cursor.dir/vnd.com.github.w666.ezonwatch.";
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sMatcher.addURI(AUTHORITY, "minutes", StepsCursor.MINUTES);
+        sMatcher.addURI(AUTHORITY, "hours", StepsCursor.HOURS);
+        sMatcher.addURI(AUTHORITY, "days", StepsCursor.DAYS);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final int resolution = match(uri);
+        if (selection != null || sortOrder != null) {
+            throw new IllegalArgumentException(
+                    "Use the from and to parameters, rows are sorted by time");
+        }
+        String address = uri.getQueryParameter(PARAM_ADDRESS);
+        if (address == null) {
+            address = Preferences.readDeviceAddress(getContext());
+        } else if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            throw new IllegalArgumentException("Bad " + PARAM_ADDRESS + " " + address);
+        }
+        // Never opens a new history here, queries must not create anything on disk.
+        final StepsHistory history = address == null
+                ? null : BluetoothLeService.findStepsHistory(getContext(), address);
+        if (history == null) {
+            return new MatrixCursor(projection != null ? projection : StepsCursor.COLUMNS);
+        }
+        try {
+            final LocalDate today = LocalDate.now();
+            final LocalDate first = history.getIndex().getFirstDay();
+            final LocalDate from = parseDate(uri, PARAM_FROM, first != null ? first : today);
+            final LocalDate to = parseDate(uri, PARAM_TO, today);
+            final StepsCursor cursor = new StepsCursor(history, from, to, resolution, projection);
+            cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+            return cursor;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the history of " + address, e);
+            return null;
+        }
+    }
+
+    private static int match(Uri uri) {
+        final int resolution = sMatcher.match(uri);
+        if (resolution == UriMatcher.NO_MATCH) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        return resolution;
+    }
+
+    private static LocalDate parseDate(Uri uri, String name, LocalDate fallback) {
+        final String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad " + name + " date " + value);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return TYPE + uri.getLastPathSegment();
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Steps are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Steps are read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Steps are read-only");
+    }
+}
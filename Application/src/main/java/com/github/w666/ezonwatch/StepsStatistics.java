@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Activity statistics over all days of a {@link StepsHistory}.
+ *
+ * Days are read and summarized in parallel on the common fork/join pool, and the
+ * {@link ActivitySketch}es are merged in date order. The sketch of all days but the latest is
+ * kept, so after a sync only the new days are read again; a changed older day, e.g. one that
+ * was downloaded again, causes a full recompute.
+ */
+public class StepsStatistics {
+    // A slow walk; minutes with fewer steps are not counted as active.
+    public static final int DEFAULT_ACTIVE_THRESHOLD = 60;
+    // Days summarized by one task without forking further.
+    private static final int LEAF_DAYS = 32;
+
+    private final StepsHistory mStepsHistory;
+    private final int mActiveThreshold;
+
+    // Sketch of mSealedDays, all stored days before the latest one at the last update.
+    private ActivitySketch mSealed;
+    private List<LocalDate> mSealedDays;
+    private long[] mSealedModified;
+    private int mGoal;
+
+    public StepsStatistics(StepsHistory history, int activeThreshold) {
+        mStepsHistory = history;
+        mActiveThreshold = activeThreshold;
+    }
+
+    /**
+     * @param goal Daily steps target, 0 if none.
+     * @return Statistics of every stored day, or null if nothing is stored.
+     */
+    public synchronized ActivitySketch compute(int goal) throws IOException {
+        final List<LocalDate> days = mStepsHistory.getDays();
+        if (days.isEmpty()) {
+            return null;
+        }
+        final int latest = days.size() - 1;
+        if (mSealed == null || goal != mGoal || !isSealedUnchanged(days)) {
+            mGoal = goal;
+            mSealed = latest == 0 ? null : summarize(days, 0, latest);
+        } else if (mSealedDays.size() < latest) {
+            mSealed = mSealed.merge(summarize(days, mSealedDays.size(), latest));
+        }
+        mSealedDays = new ArrayList<LocalDate>(days.subList(0, latest));
+        mSealedModified = new long[latest];
+        for (int i = 0; i < latest; i++) {
+            mSealedModified[i] = mStepsHistory.getLastModified(days.get(i));
+        }
+        final ActivitySketch last = summarize(days, latest, latest + 1);
+        return mSealed == null ? last : mSealed.merge(last);
+    }
+
+    // The sealed days are still the oldest stored days and none was written since.
+    private boolean isSealedUnchanged(List<LocalDate> days) {
+        if (mSealedDays.size() > days.size() - 1
+                || !days.subList(0, mSealedDays.size()).equals(mSealedDays)) {
+            return false;
+        }
+        for (int i = 0; i < mSealedDays.size(); i++) {
+            if (mStepsHistory.getLastModified(mSealedDays.get(i)) != mSealedModified[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ActivitySketch summarize(List<LocalDate> days, int from, int to) throws IOException {
+        try {
+            return ForkJoinPool.commonPool().invoke(new SummarizeTask(days, from, to));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class SummarizeTask extends RecursiveTask<ActivitySketch> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<LocalDate> mDays;
+        private final int mFrom;
+        private final int mTo;
+
+        SummarizeTask(List<LocalDate> days, int from, int to) {
+            mDays = days;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected ActivitySketch compute() {
+            if (mTo - mFrom > LEAF_DAYS) {
+                final int middle = (mFrom + mTo) >>> 1;
+                final SummarizeTask earlier = new SummarizeTask(mDays, mFrom, middle);
+                earlier.fork();
+                final ActivitySketch later = new SummarizeTask(mDays, middle, mTo).compute();
+                return earlier.join().merge(later);
+            }
+            ActivitySketch sketch = null;
+            for (int i = mFrom; i < mTo; i++) {
+                final LocalDate date = mDays.get(i);
+                final byte[] minutes;
+                try {
+                    minutes = mStepsHistory.read(date);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                final ActivitySketch day = ActivitySketch.ofDay(date,
+                        minutes == null ? new byte[0] : minutes, mGoal, mActiveThreshold);
+                sketch = sketch == null ? day : sketch.merge(day);
+            }
+            return sketch;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * Quick Settings tile showing today's steps from the local history; tapping it syncs.
+ */
+public class StepsTileService extends TileService {
+
+    /**
+     * Asks the system to rebind the tile so it shows the latest stored steps.
+     */
+    public static void requestUpdate(Context context) {
+        requestListeningState(context, new ComponentName(context, StepsTileService.class));
+    }
+
+    @Override
+    public void onStartListening() {
+        final Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+        final TodaySteps today = TodaySteps.load(getApplicationContext());
+        if (!today.isAvailable()) {
+            tile.setLabel(getString(R.string.tile_steps));
+            tile.setState(Tile.STATE_INACTIVE);
+        } else if (today.getTarget() > 0) {
+            tile.setLabel(getString(R.string.tile_steps_progress, today.getSteps(), today.getPercent()));
+            tile.setState(Tile.STATE_ACTIVE);
+        } else {
+            tile.setLabel(getString(R.string.tile_steps_count, today.getSteps()));
+            tile.setState(Tile.STATE_ACTIVE);
+        }
+        tile.updateTile();
+    }
+
+    @Override
+    public void onClick() {
+        SyncJobService.syncNow(getApplicationContext());
+    }
+}
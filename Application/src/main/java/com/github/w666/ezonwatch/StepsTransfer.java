@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reassembles the steps file streamed by the watch into one day of per-minute step counts.
+ *
+ * <pre>
+ * 50   | 00..4f | 18 bytes
+ * STEP | seq    | step count for each of the next 18 minutes
+ * </pre>
+ *
+ * 80 frames of 18 minutes make up the 1440 minutes of a day.
+ *
+ * Today's file grows all day, so a re-sync mostly streams frames that are already stored.
+ * Given the stored copy, frames equal to it are not copied and the transfer reports how many
+ * frames differed, so an unchanged day need not be stored or drawn again.
+ */
+public class StepsTransfer {
+    public static final int MINUTES_PER_DAY = 1440;
+    public static final int MINUTES_PER_FRAME = 18;
+    public static final int FRAME_COUNT = MINUTES_PER_DAY / MINUTES_PER_FRAME;
+    public static final byte FRAME_STEPS = (byte) 0x50;
+
+    private static final int HEADER_LENGTH = 2;
+    private static final String TRACE_TRANSFER = "steps transfer";
+    private static final AtomicInteger sTraceCookies = new AtomicInteger();
+
+    public interface Listener {
+        void onProgress(LocalDate date, int minutesReceived);
+
+        /**
+         * @param changedFrames Frames that differed from the stored copy, all of them if there
+         *                      was none.
+         */
+        void onComplete(LocalDate date, byte[] minutes, int changedFrames);
+    }
+
+    private final Listener mListener;
+    private LocalDate mDate;
+    private byte[] mMinutes;
+    // Stored copy of the day being received, null if none.
+    private byte[] mStored;
+    private int mChangedFrames;
+    private int mReceived;
+    private boolean mRequested;
+    // Cookie of the traced transfer, 0 if none.
+    private int mTraceCookie;
+
+    public StepsTransfer(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Builds the request for the steps file of a given day.
+     */
+    public static byte[] buildRequest(LocalDate date) {
+        return new byte[]{(byte) 0x43, (byte) 0x02, (byte) (date.getYear() - 2000),
+                (byte) date.getMonthValue(), (byte) date.getDayOfMonth(), (byte) 0xd0, (byte) 0x02};
+    }
+
+    /**
+     * @return The day a steps request asks for, or null if {@code data} is not a steps request.
+     */
+    public static LocalDate parseRequest(byte[] data) {
+        if (data == null || data.length < 5 || data[0] != (byte) 0x43 || data[1] != (byte) 0x02) {
+            return null;
+        }
+        try {
+            return LocalDate.of(2000 + (data[2] & 0xff), data[3] & 0xff, data[4] & 0xff);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Prepares for the steps file of {@code date}. Must be called before the request is written.
+     *
+     * @param stored The minutes stored for that day to compare the frames with, null if none.
+     */
+    public void start(LocalDate date, byte[] stored) {
+        beginTrace();
+        mDate = date;
+        mStored = stored != null && stored.length == MINUTES_PER_DAY ? stored : null;
+        mMinutes = null;
+        mReceived = 0;
+        mRequested = true;
+    }
+
+    /**
+     * Drops a partially received file, e.g. after the connection was lost.
+     */
+    public void cancel() {
+        endTrace();
+        mDate = null;
+        mStored = null;
+        mMinutes = null;
+        mReceived = 0;
+        mRequested = false;
+    }
+
+    /**
+     * @return Whether a file was requested or is being received and has not completed yet.
+     */
+    public boolean isActive() {
+        return mRequested || mMinutes != null;
+    }
+
+    public LocalDate getDate() {
+        return mDate;
+    }
+
+    public int getMinutesReceived() {
+        return mReceived;
+    }
+
+    /**
+     * Feeds a notification received from the main characteristic.
+     *
+     * @return true if the frame was part of a steps file.
+     */
+    public boolean onFrame(byte[] data) {
+        if (data == null || data.length < HEADER_LENGTH || data[0] != FRAME_STEPS) {
+            return false;
+        }
+        Tracer.begin("decode frame");
+        try {
+            return decode(data);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    private boolean decode(byte[] data) {
+        final int seq = data[1] & 0xff;
+        if (seq >= FRAME_COUNT) {
+            return false;
+        }
+        if (seq == 0) {
+            // The watch may also stream a file requested by someone else, assume today then.
+            if (mDate == null || mMinutes != null) {
+                mDate = LocalDate.now();
+                mStored = null;
+            }
+            mMinutes = mStored != null ? mStored.clone() : new byte[MINUTES_PER_DAY];
+            mChangedFrames = 0;
+            mReceived = 0;
+            if (mTraceCookie == 0) {
+                beginTrace();
+            }
+        } else if (mMinutes == null) {
+            // Joined in the middle of a file, nothing to attach the frame to.
+            return true;
+        } else if (seq * MINUTES_PER_FRAME > mReceived) {
+            // A frame was lost. Dropped rather than stored with a hole; the transfer stalls
+            // and the day has to be requested again.
+            mMinutes = null;
+            return true;
+        }
+
+        if (!isStored(seq, data)) {
+            final int offset = seq * MINUTES_PER_FRAME;
+            Arrays.fill(mMinutes, offset, offset + MINUTES_PER_FRAME, (byte) 0);
+            final int length = Math.min(MINUTES_PER_FRAME, data.length - HEADER_LENGTH);
+            System.arraycopy(data, HEADER_LENGTH, mMinutes, offset, length);
+            mChangedFrames++;
+        }
+        mReceived = (seq + 1) * MINUTES_PER_FRAME;
+        mListener.onProgress(mDate, mReceived);
+
+        if (seq == FRAME_COUNT - 1) {
+            final byte[] minutes = mMinutes;
+            final LocalDate date = mDate;
+            final int changedFrames = mChangedFrames;
+            mMinutes = null;
+            mStored = null;
+            mDate = null;
+            mRequested = false;
+            endTrace();
+            mListener.onComplete(date, minutes, changedFrames);
+        }
+        return true;
+    }
+
+    // Whether the frame carries the same minutes as the stored copy, short frames end in zeros.
+    private boolean isStored(int seq, byte[] data) {
+        if (mStored == null) {
+            return false;
+        }
+        final int offset = seq * MINUTES_PER_FRAME;
+        for (int i = 0; i < MINUTES_PER_FRAME; i++) {
+            final int index = HEADER_LENGTH + i;
+            if (mStored[offset + i] != (index < data.length ? data[index] : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void beginTrace() {
+        endTrace();
+        mTraceCookie = sTraceCookies.incrementAndGet();
+        Tracer.beginAsync(TRACE_TRANSFER, mTraceCookie);
+    }
+
+    private void endTrace() {
+        if (mTraceCookie != 0) {
+            Tracer.endAsync(TRACE_TRANSFER, mTraceCookie);
+            mTraceCookie = 0;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * Home-screen widget with today's steps and the progress toward the target.
+ *
+ * Rendered from {@link TodaySteps}, so it never waits for the watch. Tapping it starts a
+ * background sync; {@link BluetoothLeService} refreshes the widget when new steps are stored.
+ */
+public class StepsWidgetProvider extends AppWidgetProvider {
+
+    private static final String ACTION_SYNC = "com.github.w666.ezonwatch.ACTION_WIDGET_SYNC";
+
+    /**
+     * Redraws all placed widgets from the local history.
+     */
+    public static void updateAll(Context context) {
+        final AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        final int[] ids = manager.getAppWidgetIds(new ComponentName(context, StepsWidgetProvider.class));
+        if (ids.length > 0) {
+            update(context, manager, ids);
+        }
+    }
+
+    private static void update(Context context, AppWidgetManager manager, int[] ids) {
+        final TodaySteps today = TodaySteps.load(context);
+        final RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_steps);
+        views.setTextViewText(R.id.widget_steps,
+                today.isAvailable() ? String.valueOf(today.getSteps()) : "-");
+        if (today.getTarget() > 0) {
+            views.setTextViewText(R.id.widget_target,
+                    context.getString(R.string.steps_progress, today.getPercent(), today.getTarget()));
+        } else {
+            views.setTextViewText(R.id.widget_target, context.getString(R.string.steps_no_target));
+        }
+        views.setProgressBar(R.id.widget_progress, 100, Math.min(100, today.getPercent()), false);
+
+        final Intent intent = new Intent(context, StepsWidgetProvider.class);
+        intent.setAction(ACTION_SYNC);
+        views.setOnClickPendingIntent(R.id.widget_root,
+                PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+        manager.updateAppWidget(ids, views);
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        update(context, appWidgetManager, appWidgetIds);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_SYNC.equals(intent.getAction())) {
+            SyncJobService.syncNow(context);
+            return;
+        }
+        super.onReceive(context, intent);
+    }
+}
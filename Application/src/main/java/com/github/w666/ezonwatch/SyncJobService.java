@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Background sync of the paired watches, scheduled with {@code JobScheduler}.
+ *
+ * Each run is a single short connection per watch handled by
+ * {@link BluetoothLeService#startSync(String, BluetoothLeService.SyncCallback)}; all
+ * watches are synced concurrently. When it runs next is decided by {@link SyncPolicy}.
+ */
+public class SyncJobService extends JobService {
+    private final static String TAG = SyncJobService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+
+    private JobParameters mParams;
+    private SyncPolicy mPolicy;
+    private BluetoothLeService mBluetoothLeService;
+    private int mPending;
+    private boolean mSuccess;
+    private int mNewSteps;
+
+    /**
+     * Schedules the next sync according to the saved policy state, replacing any pending one.
+     */
+    public static void schedule(Context context) {
+        final SyncPolicy policy = loadPolicy(context);
+        final long delay = policy.nextDelay();
+        final JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, SyncJobService.class))
+                .setMinimumLatency(delay)
+                // Let the system batch us with other work, but not forever.
+                .setOverrideDeadline(delay + policy.getInterval() / 2)
+                .setRequiresBatteryNotLow(true)
+                .setPersisted(true)
+                .build();
+        final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(job);
+        Log.d(TAG, "Next sync in " + delay / SyncPolicy.MINUTE + " min");
+    }
+
+    /**
+     * Syncs as soon as possible, e.g. on a tap on the widget. Replaces the scheduled sync; the
+     * next one is scheduled again when this one finishes.
+     */
+    public static void syncNow(Context context) {
+        final JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, SyncJobService.class))
+                .setOverrideDeadline(0)
+                .build();
+        final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(job);
+    }
+
+    private static SyncPolicy loadPolicy(Context context) {
+        final SyncPolicy policy = new SyncPolicy(SyncPolicy.SYSTEM_CLOCK, new Random());
+        policy.restore(Preferences.readLong(context, Preferences.SYNC_INTERVAL),
+                Preferences.readLong(context, Preferences.LAST_SYNC),
+                Preferences.readLong(context, Preferences.LAST_SYNC_ATTEMPT));
+        return policy;
+    }
+
+    private static void savePolicy(Context context, SyncPolicy policy) {
+        SettingsRepository.get(context).edit()
+                .putLong(Preferences.SYNC_INTERVAL, policy.getInterval())
+                .putLong(Preferences.LAST_SYNC, policy.getLastSync())
+                .putLong(Preferences.LAST_SYNC_ATTEMPT, policy.getLastAttempt())
+                .commit();
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                finish();
+                return;
+            }
+            final Set<String> addresses = Preferences.readDeviceAddresses(getApplicationContext());
+            mPending = addresses.size();
+            for (String address : addresses) {
+                if (!mBluetoothLeService.startSync(address, newSyncCallback(address))) {
+                    mPending--;
+                }
+            }
+            if (mPending == 0) {
+                finish();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    // The clock is tracked per watch by its session, so only the outcome is pooled here.
+    private BluetoothLeService.SyncCallback newSyncCallback(final String address) {
+        return new BluetoothLeService.SyncCallback() {
+            @Override
+            public void onSyncFinished(boolean success, int newSteps, boolean timeSynced) {
+                if (timeSynced) {
+                    Log.d(TAG, "Clock of " + address + " set");
+                }
+                // The policy looks at the pool as a whole: one reachable, active watch is
+                // enough to keep syncing often.
+                mSuccess |= success;
+                mNewSteps = Math.max(mNewSteps, newSteps);
+                if (--mPending == 0) {
+                    finish();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mPolicy = loadPolicy(getApplicationContext());
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (Preferences.readDeviceAddresses(getApplicationContext()).isEmpty()
+                || adapter == null || !adapter.isEnabled()) {
+            // Nothing to sync with right now, try again later without touching the radio.
+            mPolicy.onSyncFinished(false, 0);
+            savePolicy(getApplicationContext(), mPolicy);
+            schedule(getApplicationContext());
+            return false;
+        }
+        mParams = params;
+        mSuccess = false;
+        mNewSteps = 0;
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection, BIND_AUTO_CREATE);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Constraints no longer met, the next attempt is scheduled by us.
+        release();
+        schedule(getApplicationContext());
+        return false;
+    }
+
+    private void finish() {
+        if (mParams == null) {
+            return;
+        }
+        Log.d(TAG, "Sync finished success=" + mSuccess + " newSteps=" + mNewSteps);
+        mPolicy.onSyncFinished(mSuccess, mNewSteps);
+        savePolicy(getApplicationContext(), mPolicy);
+        schedule(getApplicationContext());
+        final JobParameters params = mParams;
+        release();
+        jobFinished(params, false);
+    }
+
+    private void release() {
+        if (mParams != null) {
+            mParams = null;
+            unbindService(mServiceConnection);
+            mBluetoothLeService = null;
+        }
+    }
+}
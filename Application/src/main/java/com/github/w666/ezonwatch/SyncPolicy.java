@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.util.Random;
+
+/**
+ * Decides when the next background sync should run. Whether a watch's clock is set is up to
+ * the {@link ClockDriftModel} of that watch.
+ *
+ * The interval adapts to how much the last sync brought in: it halves while the watch keeps
+ * collecting steps and doubles while nothing new turns up, within
+ * [{@link #MIN_INTERVAL}, {@link #MAX_INTERVAL}]. Start times are jittered so syncs of several
+ * phones and watches do not line up.
+ */
+public class SyncPolicy {
+    public static final long MINUTE = 60 * 1000L;
+    public static final long HOUR = 60 * MINUTE;
+
+    // JobScheduler does not run jobs more often than this anyway.
+    public static final long MIN_INTERVAL = 15 * MINUTE;
+    public static final long MAX_INTERVAL = 8 * HOUR;
+    public static final long DEFAULT_INTERVAL = HOUR;
+    public static final long TIME_SYNC_INTERVAL = 24 * HOUR;
+
+    // A sync bringing at least this many new steps means the wearer is active.
+    public static final int ACTIVE_STEPS = 500;
+    private static final double JITTER = 0.1;
+
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Clock mClock;
+    private final Random mRandom;
+    private long mInterval = DEFAULT_INTERVAL;
+    private long mLastSync;
+    // Last sync that ran, successful or not; failures back off from it.
+    private long mLastAttempt;
+
+    public SyncPolicy(Clock clock, Random random) {
+        mClock = clock;
+        mRandom = random;
+    }
+
+    public long getInterval() {
+        return mInterval;
+    }
+
+    public long getLastSync() {
+        return mLastSync;
+    }
+
+    public long getLastAttempt() {
+        return mLastAttempt;
+    }
+
+    /**
+     * Restores the state saved from a previous instance.
+     */
+    public void restore(long interval, long lastSync, long lastAttempt) {
+        mInterval = clamp(interval > 0 ? interval : DEFAULT_INTERVAL);
+        mLastSync = lastSync;
+        mLastAttempt = lastAttempt;
+    }
+
+    /**
+     * Records the outcome of a sync and adapts the interval.
+     *
+     * @param success False if the watch could not be reached or the transfer did not complete.
+     * @param newSteps Steps that were not in the history before this sync.
+     */
+    public void onSyncFinished(boolean success, int newSteps) {
+        final long now = mClock.currentTimeMillis();
+        mLastAttempt = now;
+        if (success) {
+            mLastSync = now;
+            if (newSteps >= ACTIVE_STEPS) {
+                mInterval = clamp(mInterval / 2);
+            } else if (newSteps == 0) {
+                mInterval = clamp(mInterval * 2);
+            }
+        } else {
+            // Most likely out of range, do not keep the radio busy retrying.
+            mInterval = clamp(mInterval * 2);
+        }
+    }
+
+    /**
+     * @return Delay from now until the next sync should start.
+     */
+    public long nextDelay() {
+        final long jitter = (long) (mInterval * JITTER * (2 * mRandom.nextDouble() - 1));
+        final long due = Math.max(mLastSync, mLastAttempt) + mInterval + jitter;
+        return Math.max(0, due - mClock.currentTimeMillis());
+    }
+
+    private static long clamp(long interval) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+}
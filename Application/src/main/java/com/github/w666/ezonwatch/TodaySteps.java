@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.time.LocalDate;
+
+/**
+ * Today's steps of the current watch and the progress toward the steps target, read from the
+ * local history only. Backs the home-screen widget and the Quick Settings tile.
+ */
+public final class TodaySteps {
+    private final static String TAG = TodaySteps.class.getSimpleName();
+
+    private final int mSteps;
+    private final int mTarget;
+    private final boolean mAvailable;
+
+    private TodaySteps(int steps, int target, boolean available) {
+        mSteps = steps;
+        mTarget = target;
+        mAvailable = available;
+    }
+
+    /**
+     * Reads today's file of the current watch, a single small file read unless it is cached.
+     */
+    public static TodaySteps load(Context context) {
+        final int target = Preferences.readStepsTarget(context);
+        final String address = Preferences.readDeviceAddress(context);
+        if (address == null) {
+            return new TodaySteps(0, target, false);
+        }
+        try {
+            final StepsDay day =
+                    BluetoothLeService.openStepsHistory(context, address).getDay(LocalDate.now());
+            return new TodaySteps(day == null ? 0 : day.getTotal(), target, day != null);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read today's steps", e);
+            return new TodaySteps(0, target, false);
+        }
+    }
+
+    public int getSteps() {
+        return mSteps;
+    }
+
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return false if nothing was received from the watch today yet.
+     */
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    /**
+     * @return Progress toward the target in percent, 0 if no target is set.
+     */
+    public int getPercent() {
+        if (mTarget <= 0) {
+            return 0;
+        }
+        return (int) ((long) mSteps * 100 / mTarget);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Trace sections around the stages of a sync, from connect to drawing the result.
+ *
+ * Plain Java, so the pipeline classes can be traced and still run on a JVM: nothing is
+ * recorded until a backend is installed, the app installs {@link AndroidTracer}.
+ * {@link #begin(String)} and {@link #end()} nest on one thread; async sections may end on
+ * another thread and are matched by name and cookie.
+ */
+public final class Tracer {
+
+    public interface Backend {
+        void begin(String name);
+
+        void end();
+
+        void beginAsync(String name, int cookie);
+
+        void endAsync(String name, int cookie);
+    }
+
+    private static final Backend NO_OP = new Backend() {
+        @Override
+        public void begin(String name) {
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void beginAsync(String name, int cookie) {
+        }
+
+        @Override
+        public void endAsync(String name, int cookie) {
+        }
+    };
+
+    private static volatile Backend sBackend = NO_OP;
+
+    private Tracer() {
+    }
+
+    /**
+     * @param backend Where sections go, null to stop tracing.
+     */
+    public static void setBackend(Backend backend) {
+        sBackend = backend == null ? NO_OP : backend;
+    }
+
+    public static void begin(String name) {
+        sBackend.begin(name);
+    }
+
+    public static void end() {
+        sBackend.end();
+    }
+
+    public static void beginAsync(String name, int cookie) {
+        sBackend.beginAsync(name, cookie);
+    }
+
+    public static void endAsync(String name, int cookie) {
+        sBackend.endAsync(name, cookie);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+
+/**
+ * Builds the command frames written to the main Ezon characteristic.
+ */
+public class WatchCommands {
+
+    /*
+    54 49 4d 45 | 07 e0 | 09  | 1d | 0f | 04 | 2b | 00     | d002 | 000000000000
+    just text   | year  |month|day |hour|min |sec | 12/24H | EOM  | nothing, just zeros
+     T  I  M  E | 2016  | 09  | 29 | 15 | 04 | 43 | 12H    |      |
+    */
+    public static byte[] buildTime(LocalDateTime time) {
+        return new byte[]{'T', 'I', 'M', 'E',
+                (byte) (time.getYear() >> 8), (byte) time.getYear(), (byte) time.getMonthValue(),
+                (byte) time.getDayOfMonth(), (byte) time.getHour(), (byte) time.getMinute(),
+                (byte) time.getSecond(), (byte) 0x01, (byte) 0xd0, (byte) 0x02};
+    }
+
+    /**
+     * @return The time of a frame laid out like {@link #buildTime(LocalDateTime)}, null if
+     *         {@code frame} is not one or holds no valid time.
+     */
+    public static LocalDateTime parseTime(byte[] frame) {
+        if (frame == null || frame.length < 11 || frame[0] != 'T' || frame[1] != 'I'
+                || frame[2] != 'M' || frame[3] != 'E') {
+            return null;
+        }
+        try {
+            return LocalDateTime.of(((frame[4] & 0xff) << 8) | (frame[5] & 0xff), frame[6] & 0xff,
+                    frame[7] & 0xff, frame[8] & 0xff, frame[9] & 0xff, frame[10] & 0xff);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /*
+    4e 00  | 45 5a 4f 4e 49 50 48 4f 4e 45
+    header | who is calling, E  Z  O  N  I  P  H  O  N  E
+    */
+    public static byte[] buildCallReminder(String caller) {
+        // One 20 byte write; the watch shows upper case ASCII only.
+        final byte[] frame = new byte[2 + Math.min(18, caller.length())];
+        frame[0] = 0x4e;
+        for (int i = 2; i < frame.length; i++) {
+            final char c = Character.toUpperCase(caller.charAt(i - 2));
+            frame[i] = (byte) (c >= 0x20 && c < 0x7f ? c : '?');
+        }
+        return frame;
+    }
+
+    /*
+    53 54 41 52 47 45 54 45 | 32          | 0000000000000000000000
+     S  T  A  R  G  E  T  E | 5000 / 100  | zeros
+    */
+    public static byte[] buildTarget(int steps) {
+        final byte[] frame = new byte[20];
+        System.arraycopy(new byte[]{'S', 'T', 'A', 'R', 'G', 'E', 'T', 'E'}, 0, frame, 0, 8);
+        frame[8] = (byte) (steps / 100);
+        return frame;
+    }
+
+    public static byte[] buildTargetOff() {
+        return new byte[]{'S', 'T', 'A', 'R', 'G', 'E', 'T', 'D'};
+    }
+
+    /*
+    41 43 01 | 08   | 00     | 45 (E)nabled or 44 (D)isabled, then time is 00 00
+    */
+    public static byte[] buildAlarm(int minuteOfDay, boolean on) {
+        if (!on) {
+            return new byte[]{0x41, 0x43, 0x01, 0x00, 0x00, 0x44};
+        }
+        return new byte[]{0x41, 0x43, 0x01, (byte) (minuteOfDay / 60), (byte) (minuteOfDay % 60), 0x45};
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Settings of a watch: steps target, alarm and when the clock was last set. Used both for
+ * what the user asked for and for what a watch acknowledged. Immutable.
+ *
+ * Fields that were never set are {@link #UNKNOWN} and are neither sent nor compared.
+ */
+public final class WatchConfig {
+    public static final int UNKNOWN = -1;
+    public static final int TARGET_OFF = 0;
+
+    public static final WatchConfig EMPTY = new WatchConfig(UNKNOWN, UNKNOWN, false, 0);
+
+    private final int mTarget;
+    private final int mAlarmMinute;
+    private final boolean mAlarmOn;
+    private final long mTimeSynced;
+
+    private WatchConfig(int target, int alarmMinute, boolean alarmOn, long timeSynced) {
+        mTarget = target;
+        mAlarmMinute = alarmMinute;
+        mAlarmOn = alarmOn;
+        mTimeSynced = timeSynced;
+    }
+
+    /**
+     * @return Steps target, {@link #TARGET_OFF} if disabled or {@link #UNKNOWN}.
+     */
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return Alarm time as minute of the day, {@link #UNKNOWN} if the alarm was never set.
+     */
+    public int getAlarmMinute() {
+        return mAlarmMinute;
+    }
+
+    public boolean isAlarmOn() {
+        return mAlarmOn;
+    }
+
+    /**
+     * @return Wall clock time the watch clock was last set, 0 if never.
+     */
+    public long getTimeSynced() {
+        return mTimeSynced;
+    }
+
+    public WatchConfig withTarget(int target) {
+        return new WatchConfig(target, mAlarmMinute, mAlarmOn, mTimeSynced);
+    }
+
+    public WatchConfig withAlarm(int minute, boolean on) {
+        return new WatchConfig(mTarget, minute, on, mTimeSynced);
+    }
+
+    public WatchConfig withTimeSynced(long time) {
+        return new WatchConfig(mTarget, mAlarmMinute, mAlarmOn, time);
+    }
+
+    public boolean isTargetKnown() {
+        return mTarget != UNKNOWN;
+    }
+
+    public boolean isAlarmKnown() {
+        return mAlarmMinute != UNKNOWN;
+    }
+
+    /**
+     * @return Whether both would have the watch sound the same alarm; the time of an alarm
+     *         that is off does not matter.
+     */
+    public boolean isSameAlarm(WatchConfig other) {
+        return mAlarmOn == other.mAlarmOn && (!mAlarmOn || mAlarmMinute == other.mAlarmMinute);
+    }
+
+    /**
+     * @return A config written by {@link #toString()}, {@link #EMPTY} if null or unreadable.
+     */
+    public static WatchConfig parse(String value) {
+        if (value == null) {
+            return EMPTY;
+        }
+        final String[] fields = value.split(",");
+        if (fields.length != 4) {
+            return EMPTY;
+        }
+        try {
+            return new WatchConfig(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    "1".equals(fields[2]), Long.parseLong(fields[3]));
+        } catch (NumberFormatException e) {
+            return EMPTY;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mTarget + "," + mAlarmMinute + "," + (mAlarmOn ? 1 : 0) + "," + mTimeSynced;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WatchConfig)) {
+            return false;
+        }
+        final WatchConfig other = (WatchConfig) o;
+        return mTarget == other.mTarget && mAlarmMinute == other.mAlarmMinute
+                && mAlarmOn == other.mAlarmOn && mTimeSynced == other.mTimeSynced;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
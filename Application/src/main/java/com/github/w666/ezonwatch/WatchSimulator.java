@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * A watch on a plain JVM, for the {@link SoakHarness}.
+ *
+ * Answers steps requests written to it with the frames of a synthetic history, from
+ * {@code firstDay} to today. Days are generated from the seed when asked for, so years of
+ * history cost no memory. Today only has the minutes up to the simulated clock. Frames are
+ * lost and the connection drops at the given rates. Not thread-safe.
+ */
+public class WatchSimulator {
+
+    public interface Link {
+        void onNotification(byte[] value);
+
+        void onDisconnected();
+    }
+
+    private static final int WAKE_MINUTE = 7 * 60;
+    private static final int SLEEP_MINUTE = 22 * 60;
+
+    private final long mSeed;
+    private final LocalDate mFirstDay;
+    private final double mLoss;
+    private final double mDisconnect;
+    private final Random mRandom;
+    private int mTodayMinutes = StepsTransfer.MINUTES_PER_DAY;
+    private boolean mConnected = true;
+    // Day requested by the last write, delivered by the next deliver(Link).
+    private LocalDate mPending;
+
+    /**
+     * @param loss Chance of losing each frame.
+     * @param disconnect Chance of dropping the connection during a file.
+     */
+    public WatchSimulator(long seed, LocalDate firstDay, double loss, double disconnect) {
+        mSeed = seed;
+        mFirstDay = firstDay;
+        mLoss = loss;
+        mDisconnect = disconnect;
+        mRandom = new Random(seed);
+    }
+
+    public LocalDate getFirstDay() {
+        return mFirstDay;
+    }
+
+    /**
+     * Moves the clock of the watch, today has steps up to this minute.
+     */
+    public void setTodayMinutes(int minutes) {
+        mTodayMinutes = Math.min(minutes, StepsTransfer.MINUTES_PER_DAY);
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public void connect() {
+        mConnected = true;
+    }
+
+    /**
+     * @return The minutes the watch holds for a day, all zero outside its history.
+     */
+    public byte[] getDay(LocalDate date) {
+        final byte[] minutes = new byte[StepsTransfer.MINUTES_PER_DAY];
+        final LocalDate today = LocalDate.now();
+        if (date.isBefore(mFirstDay) || date.isAfter(today)) {
+            return minutes;
+        }
+        final int end = date.equals(today) ? mTodayMinutes : minutes.length;
+        final Random random = new Random(mSeed * 31 + date.toEpochDay());
+        // Walks of a few minutes to most of an hour while awake.
+        int walk = 0;
+        int pace = 0;
+        for (int i = WAKE_MINUTE; i < Math.min(end, SLEEP_MINUTE); i++) {
+            if (walk == 0 && random.nextInt(30) == 0) {
+                walk = 5 + random.nextInt(40);
+                pace = 60 + random.nextInt(70);
+            }
+            if (walk > 0) {
+                minutes[i] = (byte) (pace + random.nextInt(20));
+                walk--;
+            } else if (random.nextInt(4) == 0) {
+                minutes[i] = (byte) random.nextInt(15);
+            }
+        }
+        return minutes;
+    }
+
+    /**
+     * A write to the main characteristic.
+     *
+     * @return False if not connected, the write fails.
+     */
+    public boolean write(byte[] value) {
+        if (!mConnected) {
+            return false;
+        }
+        final LocalDate date = StepsTransfer.parseRequest(value);
+        if (date != null) {
+            mPending = date;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the notifications answering the last write, once it was acknowledged.
+     */
+    public void deliver(Link link) {
+        final LocalDate date = mPending;
+        mPending = null;
+        if (date == null || !mConnected) {
+            return;
+        }
+        final byte[] minutes = getDay(date);
+        final int dropAt = mRandom.nextDouble() < mDisconnect
+                ? mRandom.nextInt(StepsTransfer.FRAME_COUNT) : -1;
+        for (int seq = 0; seq < StepsTransfer.FRAME_COUNT; seq++) {
+            if (seq == dropAt) {
+                mConnected = false;
+                link.onDisconnected();
+                return;
+            }
+            if (mRandom.nextDouble() < mLoss) {
+                continue;
+            }
+            final byte[] frame = new byte[2 + StepsTransfer.MINUTES_PER_FRAME];
+            frame[0] = StepsTransfer.FRAME_STEPS;
+            frame[1] = (byte) seq;
+            System.arraycopy(minutes, seq * StepsTransfer.MINUTES_PER_FRAME, frame, 2,
+                    StepsTransfer.MINUTES_PER_FRAME);
+            link.onNotification(frame);
+        }
+    }
+}
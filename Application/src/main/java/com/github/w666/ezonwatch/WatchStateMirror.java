@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What one watch is known to have: the last configuration it acknowledged. Lets a sync send
+ * only the frames that change something on the watch.
+ *
+ * Nothing can be read back from the watch, so a value counts as known once its write got a
+ * successful response. Not thread-safe, a mirror belongs to the thread of its session.
+ */
+public class WatchStateMirror {
+    /**
+     * One frame that brings the watch closer to the desired configuration.
+     */
+    public static final class Change {
+        public static final int TARGET = 0;
+        public static final int ALARM = 1;
+        public static final int TIME = 2;
+
+        private final int mType;
+        private final WatchConfig mConfig;
+
+        private Change(int type, WatchConfig config) {
+            mType = type;
+            mConfig = config;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @param now Wall clock time, used by the time frame only.
+         */
+        public byte[] buildFrame(LocalDateTime now) {
+            switch (mType) {
+                case TARGET:
+                    return mConfig.getTarget() == WatchConfig.TARGET_OFF
+                            ? WatchCommands.buildTargetOff()
+                            : WatchCommands.buildTarget(mConfig.getTarget());
+                case ALARM:
+                    return WatchCommands.buildAlarm(mConfig.getAlarmMinute(), mConfig.isAlarmOn());
+                default:
+                    return WatchCommands.buildTime(now);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mType == TARGET ? "target" : mType == ALARM ? "alarm" : "time";
+        }
+    }
+
+    private WatchConfig mAcknowledged;
+
+    public WatchStateMirror(WatchConfig acknowledged) {
+        mAcknowledged = acknowledged;
+    }
+
+    public WatchConfig getAcknowledged() {
+        return mAcknowledged;
+    }
+
+    /**
+     * @param desired Configuration the user asked for; unknown fields are left alone.
+     * @param syncTime Whether to set the clock as well.
+     * @return Frames to send, in order. Empty if the watch is up to date.
+     */
+    public List<Change> diff(WatchConfig desired, boolean syncTime) {
+        final List<Change> changes = new ArrayList<Change>();
+        if (desired.isTargetKnown() && desired.getTarget() != mAcknowledged.getTarget()) {
+            changes.add(new Change(Change.TARGET, desired));
+        }
+        if (desired.isAlarmKnown()
+                && (!mAcknowledged.isAlarmKnown() || !desired.isSameAlarm(mAcknowledged))) {
+            changes.add(new Change(Change.ALARM, desired));
+        }
+        if (syncTime) {
+            changes.add(new Change(Change.TIME, desired));
+        }
+        return changes;
+    }
+
+    /**
+     * Records that the watch acknowledged a change.
+     *
+     * @param now Wall clock time of the acknowledgement.
+     * @return The new acknowledged configuration, to be persisted.
+     */
+    public WatchConfig onAcknowledged(Change change, long now) {
+        switch (change.mType) {
+            case Change.TARGET:
+                mAcknowledged = mAcknowledged.withTarget(change.mConfig.getTarget());
+                break;
+            case Change.ALARM:
+                mAcknowledged = mAcknowledged.withAlarm(change.mConfig.getAlarmMinute(),
+                        change.mConfig.isAlarmOn());
+                break;
+            default:
+                mAcknowledged = mAcknowledged.withTimeSynced(now);
+                break;
+        }
+        return mAcknowledged;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+/**
+ * Flow control for writes without response.
+ *
+ * Such a write only costs the phone handing it to the controller, but nothing says the watch
+ * got it. So at most {@link #DEFAULT_CREDITS} writes go out unconfirmed; then, and at the end
+ * of every sequence, one write asks for a response. ATT keeps writes in order, so that
+ * response confirms all writes before it as well. After any error all writes ask for a
+ * response again, until as many as the credits were acknowledged in a row. Not thread-safe.
+ */
+public class WriteCredits {
+    public static final int DEFAULT_CREDITS = 8;
+
+    private final int mCredits;
+    private int mOutstanding;
+    private boolean mFallback;
+    private int mRecovered;
+
+    public WriteCredits(int credits) {
+        mCredits = credits;
+    }
+
+    /**
+     * @param last Whether it is the last write of a sequence.
+     * @return Whether the next write has to ask for a response.
+     */
+    public boolean needsResponse(boolean last) {
+        return mFallback || last || mOutstanding + 1 >= mCredits;
+    }
+
+    /**
+     * Called when a write was handed to the stack.
+     */
+    public void onSent(boolean withResponse) {
+        if (!withResponse) {
+            mOutstanding++;
+        }
+    }
+
+    /**
+     * Called when a write with response was answered; all writes before it arrived.
+     */
+    public void onAcknowledged() {
+        mOutstanding = 0;
+        if (mFallback && ++mRecovered >= mCredits) {
+            mFallback = false;
+        }
+    }
+
+    /**
+     * Called when a write failed. Unconfirmed writes may be lost, and from now on every write
+     * waits for a response until the link proves reliable again.
+     */
+    public void onError() {
+        mOutstanding = 0;
+        mFallback = true;
+        mRecovered = 0;
+    }
+
+    /**
+     * Forgets the writes in flight, e.g. after a disconnect. The fallback stays.
+     */
+    public void reset() {
+        mOutstanding = 0;
+    }
+
+    public boolean isFallback() {
+        return mFallback;
+    }
+
+    public int getOutstanding() {
+        return mOutstanding;
+    }
+}
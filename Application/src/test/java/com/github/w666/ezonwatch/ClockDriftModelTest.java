@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClockDriftModelTest {
+    private static final long START = 1000 * SyncPolicy.HOUR;
+    private static final long DAY = 24 * SyncPolicy.HOUR;
+
+    private long mNow;
+    private ClockDriftModel mModel;
+
+    @Before
+    public void setUp() {
+        mNow = START;
+        mModel = new ClockDriftModel(ClockDriftModel.DEFAULT_THRESHOLD);
+    }
+
+    // Sets the clock now and observes it every hour for a while, drifting msPerHour.
+    private void drift(long setOffset, long msPerHour, int hours) {
+        mModel.onClockSet(mNow, setOffset);
+        final long set = mNow;
+        for (int i = 1; i <= hours; i++) {
+            mNow = set + i * SyncPolicy.HOUR;
+            mModel.addObservation(mNow, setOffset + i * msPerHour);
+        }
+    }
+
+    @Test
+    public void neverSetHasNoResync() {
+        mModel.addObservation(mNow, 100);
+        assertEquals(0, mModel.getSampleCount());
+        assertTrue(Double.isNaN(mModel.getDriftRate()));
+        assertEquals(0, mModel.getNextResync());
+    }
+
+    @Test
+    public void noSamplesFallsBackToDefaultInterval() {
+        mModel.onClockSet(mNow, 20);
+        assertEquals(20, mModel.predictOffset(mNow + DAY));
+        assertEquals(START + ClockDriftModel.DEFAULT_INTERVAL, mModel.getNextResync());
+        assertFalse(mModel.isResyncDue(START + ClockDriftModel.DEFAULT_INTERVAL - 1));
+        assertTrue(mModel.isResyncDue(START + ClockDriftModel.DEFAULT_INTERVAL));
+    }
+
+    @Test
+    public void fitsSlopeThroughTheOrigin() {
+        // 20 ppm, a typical crystal, observed with +-15 ms of alternating noise.
+        final double ppm = 20e-6;
+        mModel.onClockSet(mNow, 0);
+        for (int i = 1; i <= 20; i++) {
+            final long elapsed = i * 6 * SyncPolicy.HOUR;
+            final long noise = i % 2 == 0 ? 15 : -15;
+            mModel.addObservation(START + elapsed, Math.round(ppm * elapsed) + noise);
+        }
+        assertEquals(ppm, mModel.getDriftRate(), 0.1e-6);
+        assertEquals(Math.round(ppm * DAY), mModel.predictOffset(START + DAY), 5);
+    }
+
+    @Test
+    public void resyncsWhenDriftReachesThreshold() {
+        // 10 ms per hour leaves 50 hours until 500 ms.
+        drift(0, 10, 12);
+        assertEquals(10.0 / SyncPolicy.HOUR, mModel.getDriftRate(), 1e-12);
+        assertEquals(START + 50 * SyncPolicy.HOUR, mModel.getNextResync(), 1);
+    }
+
+    @Test
+    public void slowClockCountsRoomFromTheSetOffset() {
+        // Set 100 ms ahead, losing 10 ms per hour: 600 ms until -500 ms.
+        drift(100, -10, 12);
+        assertEquals(START + 60 * SyncPolicy.HOUR, mModel.getNextResync(), 1);
+    }
+
+    @Test
+    public void fastDriftClampsToMinInterval() {
+        // 1000 ppm would cross the threshold after 500 s.
+        drift(0, 3600, 4);
+        assertEquals(START + ClockDriftModel.MIN_INTERVAL, mModel.getNextResync());
+    }
+
+    @Test
+    public void slowDriftClampsToMaxInterval() {
+        // 0.1 ppm would take 58 days.
+        mModel.onClockSet(mNow, 0);
+        mModel.addObservation(START + 10 * DAY, 86);
+        assertEquals(START + ClockDriftModel.MAX_INTERVAL, mModel.getNextResync());
+    }
+
+    @Test
+    public void noDriftClampsToMaxInterval() {
+        drift(0, 0, 4);
+        assertEquals(0, mModel.getDriftRate(), 0);
+        assertEquals(START + ClockDriftModel.MAX_INTERVAL, mModel.getNextResync());
+    }
+
+    @Test
+    public void roundTripsThroughString() {
+        drift(-40, 7, 8);
+        final ClockDriftModel parsed =
+                ClockDriftModel.parse(mModel.toString(), ClockDriftModel.DEFAULT_THRESHOLD);
+        assertEquals(mModel.toString(), parsed.toString());
+        assertEquals(mModel.getSampleCount(), parsed.getSampleCount());
+        assertEquals(mModel.getDriftRate(), parsed.getDriftRate(), 0);
+        assertEquals(mModel.getNextResync(), parsed.getNextResync());
+    }
+
+    @Test
+    public void unreadableStringGivesEmptyModel() {
+        for (String value : new String[]{null, "", "12", "12,x,3,4"}) {
+            final ClockDriftModel parsed =
+                    ClockDriftModel.parse(value, ClockDriftModel.DEFAULT_THRESHOLD);
+            assertEquals(0, parsed.getSampleCount());
+            assertEquals(0, parsed.getNextResync());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.w666.ezonwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SyncPolicyTest {
+    private static final long START = 1000 * SyncPolicy.HOUR;
+
+    private long mNow;
+    private SyncPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mNow = START;
+        mPolicy = new SyncPolicy(new SyncPolicy.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+        }, new Random(1));
+    }
+
+    // Smallest delay the jitter allows for an interval.
+    private static long minDelay(long interval) {
+        return (long) (interval * 0.9);
+    }
+
+    @Test
+    public void successSchedulesFromLastSync() {
+        mPolicy.onSyncFinished(true, 100);
+        final long delay = mPolicy.nextDelay();
+        assertTrue(delay >= minDelay(SyncPolicy.DEFAULT_INTERVAL));
+        assertTrue(delay <= SyncPolicy.DEFAULT_INTERVAL * 11 / 10);
+    }
+
+    @Test
+    public void failuresBackOffFromLastAttempt() {
+        mPolicy.onSyncFinished(true, 100);
+        // Watch out of range for a day, every job runs when it is due and fails.
+        while (mNow < START + 24 * SyncPolicy.HOUR) {
+            mNow += mPolicy.nextDelay();
+            mPolicy.onSyncFinished(false, 0);
+            final long delay = mPolicy.nextDelay();
+            assertTrue("delay " + delay, delay >= minDelay(mPolicy.getInterval()));
+        }
+        assertEquals(SyncPolicy.MAX_INTERVAL, mPolicy.getInterval());
+        assertEquals(START, mPolicy.getLastSync());
+    }
+
+    @Test
+    public void restoredAttemptKeepsBackingOff() {
+        mPolicy.onSyncFinished(true, 100);
+        mNow += 3 * SyncPolicy.HOUR;
+        mPolicy.onSyncFinished(false, 0);
+
+        final SyncPolicy restored = new SyncPolicy(new SyncPolicy.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mNow;
+            }
+        }, new Random(1));
+        restored.restore(mPolicy.getInterval(), mPolicy.getLastSync(),
+                mPolicy.getLastAttempt());
+        assertEquals(mNow, restored.getLastAttempt());
+        assertTrue(restored.nextDelay() >= minDelay(restored.getInterval()));
+    }
+}